@@ -17,26 +17,48 @@
 package org.alfresco.extensions.bulkexport;
 
 import java.io.IOException;
-import java.time.Duration;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.alfresco.extensions.bulkexport.controler.CacheGeneratedException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.alfresco.extensions.bulkexport.controler.CompletionJournal;
+import org.alfresco.extensions.bulkexport.controler.ContentIndex;
 import org.alfresco.extensions.bulkexport.controler.Engine;
+import org.alfresco.extensions.bulkexport.controler.ExportMetrics;
+import org.alfresco.extensions.bulkexport.controler.ExportPartition;
+import org.alfresco.extensions.bulkexport.controler.ExportProgress;
+import org.alfresco.extensions.bulkexport.controler.StageTiming;
 import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
 import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDaoImpl;
+import org.alfresco.extensions.bulkexport.model.ArchiveOutput;
 import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.extensions.bulkexport.model.S3Sink;
+import org.alfresco.extensions.bulkexport.utils.ExportUtils;
+import org.alfresco.extensions.bulkexport.utils.QueryLanguage;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.ServiceRegistry;
-import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.DeclarativeWebScript;
 import org.springframework.extensions.webscripts.Status;
@@ -54,23 +76,53 @@ import org.springframework.extensions.webscripts.WebScriptRequest;
  * 
  * @author Vijay Prince (vijay.prince@gmail.com)
  */
-public class Export extends DeclarativeWebScript
+public class Export extends DeclarativeWebScript implements InitializingBean, DisposableBean
 {
     Log log = LogFactory.getLog(Export.class);
 
     /** Alfresco {@link ServiceRegistry} populated by Spring Framework. */
     protected ServiceRegistry serviceRegistry;
     
-    /** Data Access Object to Alfresco Repository. */
-    protected AlfrescoExportDao dao;
+    /** Alfresco node DAO populated by Spring Framework, used to load nodes in bulk. */
+    protected NodeDAO nodeDAO;
+    
+    /** maximum number of export jobs running at the same time, populated by Spring Framework */
+    protected int maxRunningJobs = 2;
+    
+    /** maximum number of export jobs waiting for a running one to finish, populated by Spring Framework */
+    protected int maxQueuedJobs = 10;
+    
+    /** object store the exports are written to with sink=s3, populated by Spring Framework */
+    protected String s3Endpoint;
+    protected String s3Region;
+    protected String s3Bucket;
+    protected String s3AccessKey;
+    protected String s3SecretKey;
+    protected int s3PartSize = S3Sink.DEFAULT_PART_SIZE;
+    protected int s3UploadThreads = S3Sink.DEFAULT_UPLOAD_THREADS;
+    
+    /** number of finished jobs whose output is kept */
+    private static final int FINISHED_JOBS_KEPT = 20;
+    
+    /** runs the export jobs, so the request that submits a job does not wait for it */
+    private ThreadPoolExecutor jobExecutor;
     
-    /** File and folder manager. */
-    protected FileFolder fileFolder;
+    /** time spent in every stage of all the exports, published through JMX */
+    protected final ExportMetrics metrics = new ExportMetrics();
     
-    /** Engine of system */
-    protected Engine engine;
+    /** name of the metrics in the platform MBean server */
+    private static final String METRICS_OBJECT_NAME = "Alfresco:type=BulkExport,name=ExportMetrics";
     
-    protected ConcurrentHashMap<String, Engine> runningExports = new ConcurrentHashMap<String, Engine>();
+    protected ConcurrentHashMap<String, ExportJob> runningExports = new ConcurrentHashMap<String, ExportJob>();
+    
+    /** last finished jobs, oldest first */
+    private final Map<String, ExportJob> finishedExports = new LinkedHashMap<String, ExportJob>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ExportJob> eldest) {
+            return size() > FINISHED_JOBS_KEPT;
+        }
+    };
     
     
     /**
@@ -93,6 +145,10 @@ public class Export extends DeclarativeWebScript
         if(null != cancel&& !cancel.isEmpty()) {
         	return this.cancelExport(cancel);
         }
+        String statusJobId = req.getParameter("jobId");
+        if(null != statusJobId && !statusJobId.isEmpty()) {
+        	return this.getJobStatus(statusJobId);
+        }
 
         //get URL parameters
         String nodeRef = req.getParameter("nodeRef");
@@ -108,12 +164,41 @@ public class Export extends DeclarativeWebScript
         boolean exportVersions = false;
         boolean revisionHead = false;
         boolean useNodeCache = false;
+        boolean linkContent = false;
+        ContentIndex.Deduplication dedupContent = ContentIndex.Deduplication.NONE;
+        ArchiveOutput.Format archive = ArchiveOutput.Format.NONE;
+        long archiveVolumeSize = ArchiveOutput.DEFAULT_VOLUME_SIZE;
+        int threads = 1;
+        CompletionJournal.Durability journalDurability = CompletionJournal.Durability.FLUSH;
+        int journalBatchSize = CompletionJournal.DEFAULT_BATCH_SIZE;
+        long journalInterval = CompletionJournal.DEFAULT_INTERVAL;
+        QueryLanguage queryLanguage = QueryLanguage.LUCENE;
+        int pageSize = ExportUtils.PAGE_SIZE;
+        
+        // Export only the nodes whose sys:node-dbid is in [lo, hi) with partition=lo-hi, or in hash bucket k of N 
+        // with partition=k/N, so one export can be split across several calls or cluster nodes
+        ExportPartition partition = null;
+        try
+        {
+            partition = ExportPartition.parse(req.getParameter("partition"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.warn(e.getMessage());
+            Map<String, Object> model = new HashMap<String, Object>();
+            model.put("output", e.getMessage() + ", NO EXPORT DONE");
+            return model;
+        }
+        
         String jobId = UUID.randomUUID().toString();
         if(null != nodeRef && !nodeRef.isEmpty()) {
         	jobId = nodeRef;
         } else if(null != fromDate && !fromDate.isEmpty()) {
         	jobId = fromDate;
         }
+        if(null != partition) {
+        	jobId = jobId + "/" + partition.getId();
+        }
         
         
         if (  this.runningExports.size() > 0 && this.runningExports.get(jobId) != null ) {
@@ -159,96 +244,309 @@ public class Export extends DeclarativeWebScript
             }
         }
         
-        //init variables
-       	StringBuilder sb = new StringBuilder();
-        dao = new AlfrescoExportDaoImpl(this.serviceRegistry);
-        fileFolder = new FileFolder(base, aspects, properties, updateTypesOrAspectsOrProperties, updateModelPrefix, scapeExported, serviceRegistry, sb);
-        engine = new Engine(dao, fileFolder, exportVersions, revisionHead, useNodeCache);
+        // If set to true content in a file content store is hard linked into the export instead of copied
+        if (req.getParameter("linkContent") != null)
+        {
+            if(req.getParameter("linkContent").equals("true")) 
+            {
+                linkContent = true;
+            }
+        }
         
-        NodeRef nf = null;
-
-
-        log.info("Bulk Export started");
-       	Pair<Integer, Integer> exportCountsPair = null;
-
-        try
+        // What is done with a content already exported to another file: none, link or manifest
+        if (req.getParameter("dedupContent") != null && !req.getParameter("dedupContent").isEmpty())
+        {
+            try
+            {
+                dedupContent = ContentIndex.Deduplication.parse(req.getParameter("dedupContent"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.warn("Invalid dedupContent parameter '" + req.getParameter("dedupContent") + "', using " + dedupContent);
+            }
+        }
+        
+        // Stream the files into tar, tgz or zip volumes of archiveVolumeSize MB instead of writing each of them
+        if (req.getParameter("archive") != null && !req.getParameter("archive").isEmpty())
         {
-        	if(null != nodeRef && !nodeRef.isEmpty()) {
-        		nf = dao.getNodeRef(nodeRef);
-        	}
-            runningExports.put(jobId, engine);
-            log.info("Bulk Export started with jobId: "+jobId);
-            /*
-            ExecutorService pool = Executors.newCachedThreadPool();
-            Callable<Boolean> callable = new ExportCallable(engine, nf);
-            Future<Boolean> future = pool.submit(callable);
-            */
-            if(null != nf) {
-            	exportCountsPair = engine.execute(nf, fromDate, toDate);
+            try
+            {
+                archive = ArchiveOutput.Format.parse(req.getParameter("archive"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.warn("Invalid archive parameter '" + req.getParameter("archive") + "', using " + archive);
             }
-        } 
-        catch (CacheGeneratedException e)
+        }
+        if (req.getParameter("archiveVolumeSize") != null && !req.getParameter("archiveVolumeSize").isEmpty())
         {
-            sb.append("*****************************************************************************************************\n");
-            sb.append("** No Export performed - Cache file generated only - re-run to use cache file\n");
-            sb.append("*****************************************************************************************************\n");
-            sb.append("Total nodes cached: "+e.getNodeCount()+"\n");
-            sb.append("*****************************************************************************************************\n\n\n");
+            try
+            {
+                archiveVolumeSize = Long.parseLong(req.getParameter("archiveVolumeSize")) * 1024 * 1024;
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("Invalid archiveVolumeSize parameter '" + req.getParameter("archiveVolumeSize") + "', using " + (archiveVolumeSize / 1024 / 1024) + " MB");
+            }
         }
-        catch (Exception e) 
+        
+        // Write the files to the object store configured on the webscript bean instead of the file system, 
+        // in s3Bucket (the bean bucket by default) under the s3Prefix key prefix
+        boolean s3 = "s3".equalsIgnoreCase(req.getParameter("sink"));
+        String bucket = (req.getParameter("s3Bucket") != null && !req.getParameter("s3Bucket").isEmpty()) ? req.getParameter("s3Bucket") : s3Bucket;
+        String prefix = (req.getParameter("s3Prefix") != null) ? req.getParameter("s3Prefix") : "";
+        if (s3 && archive != ArchiveOutput.Format.NONE)
         {
-            log.error("Error found during Export (Reason): " + e.toString() + "\n");
-            e.printStackTrace();
-            sb.append("*****************************************************************************************************\n");
-            sb.append("** ERROR occured:\n");
-            sb.append("** " + e.toString() + "\n");
-            sb.append("*****************************************************************************************************\n\n\n");
+            log.warn("Archive volumes are written to the export folder, archive parameter ignored with the s3 sink");
+            archive = ArchiveOutput.Format.NONE;
         }
         
-        if(engine.isCancelExport()) {
-        	sb.append("*****************************************************************************************************\n");
-        	sb.append("Export Cancelled\n");
-        	sb.append("*****************************************************************************************************\n\n\n");
-        } else {
-        	sb.append("Export finished Successfully\n");
-        }
-        if(null != exportCountsPair) {
-        	sb.append("Total Nodes to Export: "+exportCountsPair.getFirst()+"\n");
-        	sb.append("Total Nodes Exported: "+exportCountsPair.getSecond()+"\n");
-        } else {
-        	sb.append("NO EXPORT DONE\n");
-        }
-       	sb.append("*****************************************************************************************************\n\n\n");
-
-        //
-        // writes will not appear until the script is finished, flush does not help
-        //
-        sb.append("Performed Export with the following Parameters :\n"); 
-        sb.append("   export folder   : " + base + "\n");
-        sb.append("   node to export  : " + nodeRef + "\n");
-        sb.append("   From Date to export  : " + fromDate + "\n");
-        sb.append("   To Date to export  : " + toDate + "\n");
-        sb.append("   ignore exported : " + scapeExported + "\n");
-        sb.append("   export versions : " + exportVersions + "\n");
-        sb.append("   bulk import revision scheme: " + !revisionHead +"\n");
-        sb.append("   Use Node Cache : " + useNodeCache + "\n");
-
-        Duration duration = timer.elapsedDuration();
-        DateTimeFormatter df = DateTimeFormatter.ISO_LOCAL_TIME;
-        LocalTime nanoTime = LocalTime.ofNanoOfDay(duration.toNanos());
-        String timeTaken = nanoTime.format(df);
-        sb.append("Export elapsed time: " + timeTaken + "\n"); 
-
-        log.info("Bulk Export finished");
-		Map<String, Object> model = new HashMap<String, Object>();
-		String jsonEscaped = sb.toString().replace("\n", "\\\\n").replace("\r", "\\\\r").replace("\t", "\\\\t");
-		model.put("output", jsonEscaped);
-		if(null != runningExports && !runningExports.isEmpty()) {
-			updateModel(model);
-		}
-		runningExports.remove(jobId);
+        // Number of worker threads exporting nodes in parallel, 1 keeps the export on the request thread
+        if (req.getParameter("threads") != null && !req.getParameter("threads").isEmpty())
+        {
+            try
+            {
+                threads = Integer.parseInt(req.getParameter("threads"));
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("Invalid threads parameter '" + req.getParameter("threads") + "', exporting with a single thread");
+            }
+        }
+        
+        // How the list of exported nodes is committed when exporting from the node cache: none, flush or fsync, 
+        // every journalBatchSize nodes or journalInterval milliseconds
+        if (req.getParameter("journalDurability") != null && !req.getParameter("journalDurability").isEmpty())
+        {
+            try
+            {
+                journalDurability = CompletionJournal.Durability.parse(req.getParameter("journalDurability"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.warn("Invalid journalDurability parameter '" + req.getParameter("journalDurability") + "', using " + journalDurability);
+            }
+        }
+        if (req.getParameter("journalBatchSize") != null && !req.getParameter("journalBatchSize").isEmpty())
+        {
+            try
+            {
+                journalBatchSize = Integer.parseInt(req.getParameter("journalBatchSize"));
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("Invalid journalBatchSize parameter '" + req.getParameter("journalBatchSize") + "', using " + journalBatchSize);
+            }
+        }
+        if (req.getParameter("journalInterval") != null && !req.getParameter("journalInterval").isEmpty())
+        {
+            try
+            {
+                journalInterval = Long.parseLong(req.getParameter("journalInterval"));
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("Invalid journalInterval parameter '" + req.getParameter("journalInterval") + "', using " + journalInterval);
+            }
+        }
+        
+        // How the nodes modified between fromDate and toDate are found: lucene, fts, cmis or db, 
+        // and how many are searched at once
+        if (req.getParameter("queryLanguage") != null && !req.getParameter("queryLanguage").isEmpty())
+        {
+            try
+            {
+                queryLanguage = QueryLanguage.parse(req.getParameter("queryLanguage"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.warn("Invalid queryLanguage parameter '" + req.getParameter("queryLanguage") + "', using " + queryLanguage);
+            }
+        }
+        if (req.getParameter("pageSize") != null && !req.getParameter("pageSize").isEmpty())
+        {
+            try
+            {
+                pageSize = Integer.parseInt(req.getParameter("pageSize"));
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("Invalid pageSize parameter '" + req.getParameter("pageSize") + "', using " + pageSize);
+            }
+        }
+        
+        // If set to false the request waits for the export to finish, otherwise the job id is returned at once
+        boolean async = !"false".equals(req.getParameter("async"));
+        
+        //init variables
+       	StringBuilder sb = new StringBuilder();
+        AlfrescoExportDaoImpl daoImpl = new AlfrescoExportDaoImpl(this.serviceRegistry, this.nodeDAO);
+        daoImpl.setLinkContent(linkContent);
+        AlfrescoExportDao dao = daoImpl;
+        FileFolder fileFolder = new FileFolder(base, aspects, properties, updateTypesOrAspectsOrProperties, updateModelPrefix, scapeExported, serviceRegistry, sb);
+        if (s3) {
+            try {
+                fileFolder.setSink(new S3Sink(base, s3Endpoint, s3Region, bucket, prefix, s3AccessKey, s3SecretKey, s3PartSize, s3UploadThreads));
+            } catch (IllegalArgumentException e) {
+                log.warn(e.getMessage());
+                Map<String, Object> model = new HashMap<String, Object>();
+                model.put("output", e.getMessage() + ", NO EXPORT DONE");
+                return model;
+            }
+        }
+        Engine engine = new Engine(dao, fileFolder, exportVersions, revisionHead, useNodeCache, threads, serviceRegistry.getTransactionService());
+        engine.setCompletionJournalPolicy(journalDurability, journalBatchSize, journalInterval);
+        engine.setDiscoveryQuery(queryLanguage, pageSize);
+        engine.setPartition(partition);
+        engine.setContentDeduplication(dedupContent);
+        engine.setArchive(archive, archiveVolumeSize);
+        engine.setMetrics(new ExportMetrics(metrics));
+
+        StringBuilder parameters = new StringBuilder();
+        parameters.append("Performed Export with the following Parameters :\n"); 
+        parameters.append("   export folder   : " + base + "\n");
+        parameters.append("   node to export  : " + nodeRef + "\n");
+        parameters.append("   From Date to export  : " + fromDate + "\n");
+        parameters.append("   To Date to export  : " + toDate + "\n");
+        if ((null != fromDate && !fromDate.isEmpty()) || (null != toDate && !toDate.isEmpty())) {
+            parameters.append("   Query language : " + queryLanguage + ", page size " + pageSize + "\n");
+        }
+        if (null != partition) {
+            parameters.append("   Partition : " + partition + "\n");
+        }
+        parameters.append("   ignore exported : " + scapeExported + "\n");
+        parameters.append("   export versions : " + exportVersions + "\n");
+        parameters.append("   bulk import revision scheme: " + !revisionHead +"\n");
+        parameters.append("   Use Node Cache : " + useNodeCache + "\n");
+        parameters.append("   Threads : " + threads + "\n");
+        parameters.append("   Link content : " + linkContent + "\n");
+        parameters.append("   Deduplicate content : " + dedupContent + "\n");
+        if (s3) {
+            parameters.append("   Sink : s3 " + bucket + "/" + prefix + " at " + s3Endpoint + ", parts of " + (s3PartSize / 1024 / 1024) + " MB sent by " + s3UploadThreads + " threads\n");
+        }
+        if (archive != ArchiveOutput.Format.NONE) {
+            parameters.append("   Archive : " + archive + " volumes of " + (archiveVolumeSize / 1024 / 1024) + " MB\n");
+        }
+        if (useNodeCache) {
+            parameters.append("   Completion journal : " + journalDurability + " every " + journalBatchSize + " nodes or " + journalInterval + " ms\n");
+        }
+
+        final ExportJob job = new ExportJob(jobId, engine, dao, nodeRef, fromDate, toDate, parameters.toString(), sb, 
+                AuthenticationUtil.getFullyAuthenticatedUser());
+        if (runningExports.putIfAbsent(jobId, job) != null) {
+        	log.info ( "Job with " + jobId + " is already running");
+        	return this.getRunningExports();
+        }
+
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("jobId", jobId);
+        if (!async) {
+            try {
+                job.run();
+            } finally {
+                jobFinished(job);
+            }
+            log.debug("export finished in " + timer.elapsedTime() + " s");
+            model.put("state", job.getState().toString());
+            model.put("output", escapeOutput(job.getOutput()));
+            return model;
+        }
+
+        try {
+            getJobExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        jobFinished(job);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            runningExports.remove(jobId);
+            log.warn("Export job " + jobId + " rejected, " + maxRunningJobs + " jobs running and " + maxQueuedJobs + " queued");
+            model.put("output", escapeOutput("Too many export jobs, " + jobId + " was not started. Retry when a running job is finished.\n"));
+            return model;
+        }
+        log.info("Bulk Export job " + jobId + " submitted");
+        model.put("state", job.getState().toString());
+        model.put("output", escapeOutput("Export job " + jobId + " submitted, its progress is reported by ?jobId=" + jobId + "\n"));
+        updateModel(model);
 	    return model;
     }
+
+    /**
+     * Move a job that is done from the running exports to the finished ones
+     */
+    private void jobFinished(ExportJob job) {
+        synchronized (finishedExports) {
+            finishedExports.put(job.getJobId(), job);
+        }
+        runningExports.remove(job.getJobId(), job);
+    }
+
+    private static String escapeOutput(String output) {
+        return output.replace("\n", "\\\\n").replace("\r", "\\\\r").replace("\t", "\\\\t");
+    }
+
+    /**
+     * @return the executor running the export jobs, created on first use
+     */
+    protected synchronized ThreadPoolExecutor getJobExecutor() {
+        if (jobExecutor == null) {
+            jobExecutor = new ThreadPoolExecutor(maxRunningJobs, maxRunningJobs, 60, TimeUnit.SECONDS, 
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueuedJobs)), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "BulkExport-job-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            jobExecutor.allowCoreThreadTimeOut(true);
+        }
+        return jobExecutor;
+    }
+
+    /**
+     * Publish the metrics of all the exports through JMX
+     */
+    public void afterPropertiesSet() {
+        try {
+            ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                // left by an earlier instance of the webscript
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            log.warn("Export metrics not published through JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cancel the running jobs and stop the executor when the webscript is destroyed
+     */
+    public void destroy() {
+        try {
+            ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Export metrics not removed from JMX: " + e.getMessage());
+        }
+        for (ExportJob job : runningExports.values()) {
+            job.cancel();
+        }
+        synchronized (this) {
+            if (jobExecutor != null) {
+                jobExecutor.shutdown();
+            }
+        }
+    }
 	
     public ServiceRegistry getServiceRegistry() 
     {
@@ -260,9 +558,74 @@ public class Export extends DeclarativeWebScript
     {
         this.serviceRegistry = serviceRegistry;
     }
+
+
+    public void setNodeDAO(NodeDAO nodeDAO) 
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+
+    public void setMaxRunningJobs(int maxRunningJobs) 
+    {
+        this.maxRunningJobs = Math.max(1, maxRunningJobs);
+    }
+
+
+    public void setMaxQueuedJobs(int maxQueuedJobs) 
+    {
+        this.maxQueuedJobs = Math.max(1, maxQueuedJobs);
+    }
+
+
+    public void setS3Endpoint(String s3Endpoint) 
+    {
+        this.s3Endpoint = s3Endpoint;
+    }
+
+
+    public void setS3Region(String s3Region) 
+    {
+        this.s3Region = s3Region;
+    }
+
+
+    public void setS3Bucket(String s3Bucket) 
+    {
+        this.s3Bucket = s3Bucket;
+    }
+
+
+    public void setS3AccessKey(String s3AccessKey) 
+    {
+        this.s3AccessKey = s3AccessKey;
+    }
+
+
+    public void setS3SecretKey(String s3SecretKey) 
+    {
+        this.s3SecretKey = s3SecretKey;
+    }
+
+
+    /**
+     * @param s3PartSize size in MB of the parts of a multipart upload
+     */
+    public void setS3PartSize(int s3PartSize) 
+    {
+        this.s3PartSize = s3PartSize * 1024 * 1024;
+    }
+
+
+    public void setS3UploadThreads(int s3UploadThreads) 
+    {
+        this.s3UploadThreads = Math.max(1, s3UploadThreads);
+    }
     
 	public Map<String, Object> getRunningExports() {
 		Map<String, Object> model = new HashMap<String, Object>();
+		model.put("stages", stageList(metrics));
+		model.put("contentBytes", metrics.getContentBytes());
 		if(null != runningExports && !runningExports.isEmpty()) {
 			updateModel(model);
 		}
@@ -280,8 +643,8 @@ public class Export extends DeclarativeWebScript
 	public Map<String, Object> isJobRunning(String jobId) {
 		log.debug("Checking if job with jobId " + jobId + " is running.");
 		Map<String, Object> model = new HashMap<String, Object>();
-		Engine eng = runningExports.get(jobId);
-		if ( eng != null ) {
+		ExportJob job = runningExports.get(jobId);
+		if ( job != null ) {
 			log.debug("Job with id " + jobId + " Running");
 			model.put("output", jobId + "already running");
 			updateModel(model);
@@ -292,11 +655,38 @@ public class Export extends DeclarativeWebScript
 		return model;
 	}
 	
+	/**
+	 * Report the state of a running or finished job, with its output once it is done
+	 */
+	public Map<String, Object> getJobStatus(String jobId) {
+		Map<String, Object> model = new HashMap<String, Object>();
+		ExportJob job = runningExports.get(jobId);
+		if (null == job) {
+			synchronized (finishedExports) {
+				job = finishedExports.get(jobId);
+			}
+		}
+		if (null == job) {
+			model.put("output", "No export job " + jobId);
+			return model;
+		}
+		model.put("jobId", jobId);
+		model.put("state", job.getState().toString());
+		model.put("jobList", Collections.singletonList(jobStatus(job)));
+		model.put("totalNodesToExport", job.getEngine().getTotalNodesToExport());
+		model.put("availableNodesToExport", job.getEngine().getAvailableNodesToExport());
+		model.put("previouslyExportedNodes", job.getEngine().getPreviouslyExportedNodes());
+		if (job.getState().isDone()) {
+			model.put("output", escapeOutput(job.getOutput()));
+		}
+		return model;
+	}
+	
 	public Map<String, Object> cancelExport(String jobId) {
-		Engine runningEngine = runningExports.get(jobId);
+		ExportJob runningJob = runningExports.get(jobId);
 		Map<String, Object> model = new HashMap<String, Object>();
-		if(null != runningEngine) {
-			runningEngine.setCancelExport(true);
+		if(null != runningJob) {
+			runningJob.cancel();
 		}
 		model.put("output", jobId+" Cancelled");
 		if(null != runningExports && !runningExports.isEmpty()) {
@@ -304,36 +694,78 @@ public class Export extends DeclarativeWebScript
 		}
 	    return model;
 	}
+	/**
+	 * Add the status of every running job to the model, in the jobList in the order they were submitted. 
+	 * The jobs, totalNodesToExport, availableNodesToExport and previouslyExportedNodes entries are those 
+	 * of the oldest job, as reported by earlier versions.
+	 */
 	public Map<String, Object> updateModel(Map<String, Object> model) {
-		model.put("jobs", Collections.list(runningExports.keys()).get(0));
-		Engine firstEngine = new ArrayList<Engine>(runningExports.values()).get(0);
+		List<ExportJob> jobs = new ArrayList<ExportJob>(runningExports.values());
+		if (jobs.isEmpty()) {
+			// the last job finished in the meantime
+			return model;
+		}
+		Collections.sort(jobs, new Comparator<ExportJob>() {
+			public int compare(ExportJob job1, ExportJob job2) {
+				return Long.compare(job1.getSubmitted(), job2.getSubmitted());
+			}
+		});
+		List<Map<String, Object>> jobList = new ArrayList<Map<String, Object>>(jobs.size());
+		for (ExportJob job : jobs) {
+			jobList.add(jobStatus(job));
+		}
+		model.put("jobList", jobList);
+
+		ExportJob firstJob = jobs.get(0);
+		model.put("jobs", firstJob.getJobId());
+		Engine firstEngine = firstJob.getEngine();
 		model.put("totalNodesToExport", firstEngine.getTotalNodesToExport());
 		model.put("availableNodesToExport", firstEngine.getAvailableNodesToExport());
 		model.put("previouslyExportedNodes", firstEngine.getPreviouslyExportedNodes());
-		/*
-		// The below only works on java 1.8 because of stream()
-		model.put("totalNodesToExport", runningExports.values().stream().findFirst().get().getTotalNodesToExport());
-		model.put("availableNodesToExport", runningExports.values().stream().findFirst().get().getAvailableNodesToExport());
-		model.put("previouslyExportedNodes", runningExports.values().stream().findFirst().get().getPreviouslyExportedNodes());
-		*/
 		return model;
 	}
-/*	
-	public static class ExportCallable implements Callable<Boolean> {
-		private NodeRef nodeRef = null;
-		private Engine engine = null;
-		public ExportCallable(Engine engine, NodeRef nodeRef) {
-			this.engine = engine;
-			this.nodeRef = nodeRef;
-		}
-		public Boolean call() throws Exception {
-			Boolean status = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Boolean>() {
-                public Boolean doWork() throws Exception {
-                	return engine.execute(nodeRef);
-                }
-            }, AuthenticationUtil.getSystemUserName());
-			return status;
+
+	/**
+	 * @return the status of one job, as listed in the jobList of the model
+	 */
+	private Map<String, Object> jobStatus(ExportJob job) {
+		ExportProgress progress = job.getEngine().getProgress();
+		Map<String, Object> status = new HashMap<String, Object>();
+		status.put("jobId", job.getJobId());
+		status.put("state", job.getState().toString());
+		status.put("phase", progress.getPhase().toString());
+		status.put("total", progress.getTotal());
+		status.put("done", progress.getDone());
+		status.put("remaining", progress.getRemaining());
+		// rounded so the templates can print them as they are
+		status.put("nodesPerSecond", Math.round(progress.getNodesPerSecond() * 10) / 10d);
+		status.put("bytes", progress.getBytes());
+		status.put("bytesPerSecond", Math.round(progress.getBytesPerSecond()));
+		status.put("eta", progress.getEta());
+		status.put("elapsed", progress.getElapsed() / 1000);
+		status.put("contentBytes", job.getEngine().getMetrics().getContentBytes());
+		status.put("stages", stageList(job.getEngine().getMetrics()));
+		return status;
+	}
+
+	/**
+	 * @return the timings of every stage, as listed in the model
+	 */
+	private List<Map<String, Object>> stageList(ExportMetrics stageMetrics) {
+		List<StageTiming> timings = stageMetrics.getStages();
+		List<Map<String, Object>> stages = new ArrayList<Map<String, Object>>(timings.size());
+		for (StageTiming timing : timings) {
+			Map<String, Object> stage = new HashMap<String, Object>();
+			stage.put("name", timing.getName());
+			stage.put("count", timing.getCount());
+			stage.put("totalMillis", timing.getTotalMillis());
+			stage.put("meanMicros", timing.getMeanMicros());
+			stage.put("p50Micros", timing.getP50Micros());
+			stage.put("p90Micros", timing.getP90Micros());
+			stage.put("p99Micros", timing.getP99Micros());
+			stage.put("maxMicros", timing.getMaxMicros());
+			stages.add(stage);
 		}
+		return stages;
 	}
-	*/
 }
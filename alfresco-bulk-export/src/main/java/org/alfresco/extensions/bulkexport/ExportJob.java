@@ -0,0 +1,260 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
+import org.alfresco.extensions.bulkexport.controler.CacheGeneratedException;
+import org.alfresco.extensions.bulkexport.controler.Engine;
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One export submitted to the {@link Export} webscript. The job runs on a thread of the webscript's 
+ * executor, as the user who submitted it, so the request that submitted it returns at once. The job 
+ * holds no transaction, the {@link Engine} opens a short read only one for each folder or page of nodes. 
+ * The output is kept once the job is finished.
+ */
+public class ExportJob implements Runnable
+{
+    private static final Log log = LogFactory.getLog(ExportJob.class);
+
+    public enum State
+    {
+        QUEUED, RUNNING, FINISHED, CANCELLED, FAILED;
+
+        public boolean isDone()
+        {
+            return this == FINISHED || this == CANCELLED || this == FAILED;
+        }
+    }
+
+    private final String jobId;
+    private final Engine engine;
+    private final AlfrescoExportDao dao;
+    private final String nodeRef;
+    private final String fromDate;
+    private final String toDate;
+
+    /** summary of the parameters, appended to the output */
+    private final String parameters;
+
+    /** output of the job, the file and folder manager reports its issues here as well */
+    private final StringBuilder sb;
+
+    private final String runAsUser;
+
+    private final long submitted = System.currentTimeMillis();
+    private volatile long started = 0;
+    private volatile long finished = 0;
+    private volatile State state = State.QUEUED;
+    private volatile String output;
+    private volatile Pair<Integer, Integer> exportCounts;
+
+    /**
+     * @param jobId
+     * @param engine engine set up for this job
+     * @param dao Data Access Object of the engine
+     * @param nodeRef node to export, may be null
+     * @param fromDate may be null
+     * @param toDate may be null
+     * @param parameters summary of the parameters
+     * @param sb output shared with the file and folder manager of the engine
+     * @param runAsUser user who submitted the job
+     */
+    public ExportJob(String jobId, Engine engine, AlfrescoExportDao dao, String nodeRef, String fromDate, String toDate, 
+            String parameters, StringBuilder sb, String runAsUser)
+    {
+        this.jobId = jobId;
+        this.engine = engine;
+        this.dao = dao;
+        this.nodeRef = nodeRef;
+        this.fromDate = fromDate;
+        this.toDate = toDate;
+        this.parameters = parameters;
+        this.sb = sb;
+        this.runAsUser = runAsUser;
+    }
+
+    public void run()
+    {
+        if (engine.isCancelExport())
+        {
+            // cancelled while waiting in the queue
+            output = "Export " + jobId + " cancelled before it started\n";
+            state = State.CANCELLED;
+            finished = System.currentTimeMillis();
+            return;
+        }
+        state = State.RUNNING;
+        started = System.currentTimeMillis();
+        try
+        {
+            output = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<String>() {
+                public String doWork() throws Exception
+                {
+                    return export();
+                }
+            }, runAsUser);
+            if (state == State.RUNNING)
+            {
+                state = engine.isCancelExport() ? State.CANCELLED : State.FINISHED;
+            }
+        }
+        catch (Throwable e)
+        {
+            log.error("Export " + jobId + " failed", e);
+            output = sb.toString() + "** ERROR occured:\n** " + e.toString() + "\n";
+            state = State.FAILED;
+        }
+        finally
+        {
+            finished = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Run the export and build its output
+     */
+    private String export()
+    {
+        StopWatch timer = new StopWatch();
+        log.info("Bulk Export started with jobId: " + jobId);
+
+        try
+        {
+            NodeRef nf = null;
+            if(null != nodeRef && !nodeRef.isEmpty()) {
+                nf = dao.getNodeRef(nodeRef);
+            }
+            if(null != nf) {
+                exportCounts = engine.execute(nf, fromDate, toDate);
+            }
+        } 
+        catch (CacheGeneratedException e)
+        {
+            sb.append("*****************************************************************************************************\n");
+            sb.append("** No Export performed - Cache file generated only - re-run to use cache file\n");
+            sb.append("*****************************************************************************************************\n");
+            sb.append("Total nodes cached: "+e.getNodeCount()+"\n");
+            sb.append("*****************************************************************************************************\n\n\n");
+        }
+        catch (Exception e) 
+        {
+            log.error("Error found during Export (Reason): " + e.toString() + "\n", e);
+            sb.append("*****************************************************************************************************\n");
+            sb.append("** ERROR occured:\n");
+            sb.append("** " + e.toString() + "\n");
+            sb.append("*****************************************************************************************************\n\n\n");
+            state = State.FAILED;
+        }
+        
+        if(engine.isCancelExport()) {
+            sb.append("*****************************************************************************************************\n");
+            sb.append("Export Cancelled\n");
+            sb.append("*****************************************************************************************************\n\n\n");
+        } else {
+            sb.append("Export finished Successfully\n");
+        }
+        if(null != exportCounts) {
+            sb.append("Total Nodes to Export: "+exportCounts.getFirst()+"\n");
+            sb.append("Total Nodes Exported: "+exportCounts.getSecond()+"\n");
+        } else {
+            sb.append("NO EXPORT DONE\n");
+        }
+        sb.append("*****************************************************************************************************\n\n\n");
+
+        sb.append(parameters);
+        sb.append("Content files " + dao.getContentTransferStats() + "\n");
+        sb.append("Stage timings, " + engine.getMetrics());
+
+        Duration duration = timer.elapsedDuration();
+        DateTimeFormatter df = DateTimeFormatter.ISO_LOCAL_TIME;
+        LocalTime nanoTime = LocalTime.ofNanoOfDay(duration.toNanos());
+        String timeTaken = nanoTime.format(df);
+        sb.append("Export elapsed time: " + timeTaken + "\n"); 
+
+        log.info("Bulk Export finished with jobId: " + jobId);
+        return sb.toString();
+    }
+
+    /**
+     * Ask the job to stop, a queued job stops as soon as it is taken from the queue
+     */
+    public void cancel()
+    {
+        engine.setCancelExport(true);
+    }
+
+    public String getJobId()
+    {
+        return jobId;
+    }
+
+    public Engine getEngine()
+    {
+        return engine;
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return output of the job, null until it is done
+     */
+    public String getOutput()
+    {
+        return output;
+    }
+
+    /**
+     * @return total and exported node counts, null if nothing was exported
+     */
+    public Pair<Integer, Integer> getExportCounts()
+    {
+        return exportCounts;
+    }
+
+    public long getSubmitted()
+    {
+        return submitted;
+    }
+
+    /**
+     * @return when the job started running, 0 while it is queued
+     */
+    public long getStarted()
+    {
+        return started;
+    }
+
+    /**
+     * @return when the job was done, 0 while it is queued or running
+     */
+    public long getFinished()
+    {
+        return finished;
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Journal of the nodes already exported from a node cache, the <code>.complete</code> file.
+ * 
+ * Nodes are recorded by their position in the {@link NodeCacheFile}, so a resume only has to replay 
+ * the journal into a {@link BitSet} and skip the set positions while iterating the cache.
+ * <pre>
+ *   header   magic (int) | version (short) | reserved (short) | node count of the cache (long) | CRC32 of the cache records (long)
+ *   records  position (int) | complement of the position (int)
+ * </pre>
+ * Positions only mean something in the cache they were recorded against, a journal whose count and 
+ * checksum do not match the cache being exported is discarded when it is opened.
+ * The complement lets a replay detect a record torn by a crash, replay stops at the first bad record 
+ * and the journal is truncated there before new records are appended.
+ * 
+ * The journal stays open for the whole export. Records are buffered and written as a group every 
+ * <code>batchSize</code> nodes, and at the latest <code>interval</code> milliseconds after the last 
+ * group, a shared timer commits the pending records when no node completes in time, eg. while a large 
+ * content is copied or the discovery is slow. How far a group is pushed towards the disk is given by 
+ * the {@link Durability}. A node whose record is lost in a crash is exported again on the next run.
+ */
+public class CompletionJournal implements Closeable
+{
+    private static final Log log = LogFactory.getLog(CompletionJournal.class);
+
+    public static final int MAGIC = 0x42455831; // "BEX1"
+    public static final short VERSION = 2;
+
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8;
+    public static final int RECORD_SIZE = 4 + 4;
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /** records held in memory when the durability is {@link Durability#NONE} */
+    private static final int UNCOMMITTED_BUFFER_RECORDS = 8192;
+
+    /** first bytes of a java serialization stream, the format of the journal in earlier versions */
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+
+    /** commits the records of the journals that wait for their next node, shared by every export */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "BulkExport-journal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * How far a group of records is pushed when it is committed
+     */
+    public enum Durability
+    {
+        /** records are only written when the buffer is full and when the journal is closed */
+        NONE,
+        /** every group is written to the operating system, it survives a crash of the JVM */
+        FLUSH,
+        /** every group is written and forced to the disk, it survives a crash of the server */
+        FSYNC;
+
+        /**
+         * @param value case insensitive name, may be null or empty
+         * @return the durability, {@link #FLUSH} when no value is given
+         * @throws IllegalArgumentException if the value is not a durability
+         */
+        public static Durability parse(String value)
+        {
+            if (value == null || value.isEmpty())
+            {
+                return FLUSH;
+            }
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final Durability durability;
+    private final int batchSize;
+    private final long interval;
+    private final BitSet completed;
+    private int pending = 0;
+    private long lastCommit = System.currentTimeMillis();
+    private ScheduledFuture<?> scheduledCommit = null;
+
+    /**
+     * Open the journal for appending, replaying what previous runs recorded.
+     * 
+     * @param file the journal, created if it does not exist
+     * @param size number of nodes in the node cache, positions outside of it are ignored
+     * @param cacheChecksum CRC32 of the records of the node cache
+     * @param durability
+     * @param batchSize number of nodes recorded between two commits
+     * @param interval maximum milliseconds between two commits
+     * @throws IOException
+     */
+    public CompletionJournal(File file, long size, long cacheChecksum, Durability durability, int batchSize, long interval) throws IOException
+    {
+        this.durability = durability;
+        this.batchSize = Math.max(1, batchSize);
+        this.interval = interval;
+        this.completed = new BitSet();
+        long validLength = replay(file, size, cacheChecksum, completed);
+
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try
+        {
+            int capacity = (durability == Durability.NONE) ? UNCOMMITTED_BUFFER_RECORDS : this.batchSize;
+            this.buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, capacity * RECORD_SIZE));
+            if (channel.size() > validLength)
+            {
+                log.info("Truncating completion journal to the last valid record: " + file.getPath());
+                channel.truncate(validLength);
+            }
+            channel.position(validLength);
+            if (validLength == 0)
+            {
+                buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(size).putLong(cacheChecksum);
+                writeBuffer();
+                channel.force(false);
+            }
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        if (durability != Durability.NONE && interval > 0)
+        {
+            scheduledCommit = timer.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    commitIfDue();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return positions recorded by previous runs when the journal was opened
+     */
+    public BitSet getCompleted()
+    {
+        return completed;
+    }
+
+    /**
+     * Record one completed node, the record is committed with its group
+     * 
+     * @param position position of the node in the node cache
+     * @throws IOException
+     */
+    public synchronized void record(int position) throws IOException
+    {
+        if (buffer.remaining() < RECORD_SIZE)
+        {
+            commit();
+        }
+        buffer.putInt(position).putInt(~position);
+        pending++;
+        if (durability != Durability.NONE 
+                && (pending >= batchSize || System.currentTimeMillis() - lastCommit >= interval))
+        {
+            commit();
+        }
+    }
+
+    /**
+     * Write the buffered records, and force them to the disk when the durability asks for it
+     * 
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException
+    {
+        if (buffer.position() > 0)
+        {
+            writeBuffer();
+            if (durability == Durability.FSYNC)
+            {
+                channel.force(false);
+            }
+        }
+        pending = 0;
+        lastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * Commit the pending records when the interval has passed since the last commit, called by the timer
+     */
+    private synchronized void commitIfDue()
+    {
+        if (pending == 0 || !channel.isOpen() || System.currentTimeMillis() - lastCommit < interval)
+        {
+            return;
+        }
+        try
+        {
+            commit();
+        }
+        catch (IOException e)
+        {
+            // the next node recorded reports the failure to the export
+            log.warn("Could not commit the completion journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Commit the pending records and close the journal
+     */
+    public synchronized void close() throws IOException
+    {
+        if (!channel.isOpen())
+        {
+            return;
+        }
+        if (scheduledCommit != null)
+        {
+            scheduledCommit.cancel(false);
+        }
+        try
+        {
+            commit();
+            if (durability != Durability.NONE)
+            {
+                channel.force(false);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Tell whether the journal was written by earlier versions as a stream of serialized NodeRefs
+     * 
+     * @param file
+     * @return {@link Boolean}
+     * @throws IOException
+     */
+    public static boolean isSerializedJournal(File file) throws IOException
+    {
+        if (file.length() < 2)
+        {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            return raf.readUnsignedShort() == SERIALIZATION_MAGIC;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replay the journal into the given bitmap
+     * 
+     * @return length of the journal up to its last valid record, 0 if it has no valid header or 
+     *         was recorded against another node cache
+     */
+    private static long replay(File file, long size, long cacheChecksum, BitSet completed) throws IOException
+    {
+        if (!file.exists() || file.length() < HEADER_SIZE)
+        {
+            return 0;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException("Not a completion journal: " + file.getPath());
+            }
+            short version = in.readShort();
+            if (version != VERSION)
+            {
+                // earlier journals do not tell which cache they index, their positions can not be trusted
+                log.warn("Completion journal version " + version + " discarded, the nodes are exported again: " + file.getPath());
+                return 0;
+            }
+            in.readShort();
+            long cacheSize = in.readLong();
+            long checksum = in.readLong();
+            if (cacheSize != size || checksum != cacheChecksum)
+            {
+                log.warn("Completion journal was recorded against another node cache, discarded: " + file.getPath());
+                return 0;
+            }
+
+            long length = HEADER_SIZE;
+            while (true)
+            {
+                int position;
+                try
+                {
+                    position = in.readInt();
+                    if (in.readInt() != ~position)
+                    {
+                        log.warn("Completion journal has a damaged record, replay stopped at " + completed.cardinality() + " nodes");
+                        break;
+                    }
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                length += RECORD_SIZE;
+                if (position >= 0 && position < size)
+                {
+                    completed.set(position);
+                }
+            }
+            return length;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace the journal with one holding exactly the given positions
+     * 
+     * @param file
+     * @param completed
+     * @param size number of nodes in the node cache
+     * @param cacheChecksum CRC32 of the records of the node cache
+     * @throws IOException
+     */
+    public static void write(File file, BitSet completed, long size, long cacheChecksum) throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeLong(size);
+            out.writeLong(cacheChecksum);
+            for (int position = completed.nextSetBit(0); position >= 0; position = completed.nextSetBit(position + 1))
+            {
+                out.writeInt(position);
+                out.writeInt(~position);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import org.alfresco.extensions.bulkexport.utils.ExportUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Disk backed index of the content already exported, from the content url to the first file it was 
+ * exported to, the <code>.content</code> file and its <code>.content.data</code> entries.
+ * 
+ * The index is an open addressing hash table memory mapped from the <code>.content</code> file, so it 
+ * does not take heap space and holds tens of millions of entries. Entries are appended to the data file.
+ * <pre>
+ *   table    magic (int) | version (short) | state (short) | slot count (int) | entry count (int)
+ *   slots    hash of the content url (long, 0 when free) | offset of the entry in the data file (long)
+ *   data     content url (UTF) | exported file (UTF)
+ * </pre>
+ * The content url of an entry is compared on every hash match, a hash collision never links two 
+ * different contents. An index that was not closed, eg. after a crash, is discarded when opened again.
+ */
+public class ContentIndex implements Closeable
+{
+    private static final Log log = LogFactory.getLog(ContentIndex.class);
+
+    public static final int MAGIC = 0x42455844; // "BEXD"
+    public static final short VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4;
+    public static final int SLOT_SIZE = 8 + 8;
+
+    private static final short STATE_CLOSED = 0;
+    private static final short STATE_OPEN = 1;
+
+    private static final int INITIAL_SLOTS = 1 << 16;
+
+    /** largest table that fits a single mapping, 1GB */
+    private static final int MAX_SLOTS = 1 << 26;
+
+    /** the table is doubled when more than this share of its slots is used */
+    private static final double LOAD_FACTOR = 0.7;
+
+    /**
+     * What is done with a content already exported to another file
+     */
+    public enum Deduplication
+    {
+        /** the content is copied again */
+        NONE,
+        /** the file is hard linked to the exported one, or copied from it when they can not be linked */
+        LINK,
+        /** the file is not written, it is listed in the {@link DedupManifest} of the export */
+        MANIFEST;
+
+        /**
+         * @param value case insensitive name, may be null or empty
+         * @return the deduplication, {@link #NONE} when no value is given
+         * @throws IllegalArgumentException if the value is not a deduplication
+         */
+        public static Deduplication parse(String value)
+        {
+            if (value == null || value.isEmpty())
+            {
+                return NONE;
+            }
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile data;
+    private long dataLength;
+    private FileChannel channel;
+    private MappedByteBuffer table;
+    private int slots;
+    private int entries;
+    private boolean full = false;
+
+    /**
+     * Open the index, keeping the entries of previous runs if it was closed properly
+     * 
+     * @param file the table, the entries are in the same file with a <code>.data</code> suffix
+     * @throws IOException
+     */
+    public ContentIndex(File file) throws IOException
+    {
+        this.file = file;
+        File dataFile = dataFile(file);
+        int previousSlots = readClosedHeader(file, dataFile);
+        if (previousSlots < 0)
+        {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dataFile.toPath());
+        }
+
+        this.data = new RandomAccessFile(dataFile, "rw");
+        try
+        {
+            this.dataLength = data.length();
+            if (previousSlots < 0)
+            {
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.slots = INITIAL_SLOTS;
+                this.table = map(channel, slots);
+                this.entries = 0;
+            }
+            else
+            {
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.slots = previousSlots;
+                this.table = map(channel, slots);
+                this.entries = table.getInt(12);
+                log.info("Reusing " + entries + " exported contents from " + file.getPath());
+            }
+            writeHeader(STATE_OPEN);
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of contents in the index
+     */
+    public synchronized int size()
+    {
+        return entries;
+    }
+
+    /**
+     * @param contentUrl
+     * @return the file the content was first exported to, null if it was not exported yet
+     * @throws IOException
+     */
+    public synchronized String get(String contentUrl) throws IOException
+    {
+        int at = find(contentUrl, ExportUtils.hash(contentUrl));
+        if (table.getLong(at) == 0)
+        {
+            return null;
+        }
+        return readEntry(table.getLong(at + 8))[1];
+    }
+
+    /**
+     * Record the file a content was exported to, it replaces the file recorded before for the same content. 
+     * Once the index is full the new contents are not recorded anymore.
+     * 
+     * @param contentUrl
+     * @param path the exported file
+     * @throws IOException
+     */
+    public synchronized void put(String contentUrl, String path) throws IOException
+    {
+        long hash = ExportUtils.hash(contentUrl);
+        int at = find(contentUrl, hash);
+        if (table.getLong(at) == 0)
+        {
+            if (entries + 1 > slots * LOAD_FACTOR)
+            {
+                if (slots >= MAX_SLOTS)
+                {
+                    if (!full)
+                    {
+                        log.warn("Content index is full with " + entries + " contents, new contents are not deduplicated: " + file.getPath());
+                        full = true;
+                    }
+                    return;
+                }
+                grow();
+                at = find(contentUrl, hash);
+            }
+            entries++;
+        }
+        long offset = appendEntry(contentUrl, path);
+        table.putLong(at + 8, offset);
+        table.putLong(at, hash);
+    }
+
+    /**
+     * Mark the index as closed properly and release it
+     */
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            if (channel != null && channel.isOpen())
+            {
+                try
+                {
+                    writeHeader(STATE_CLOSED);
+                    table.force();
+                }
+                finally
+                {
+                    channel.close();
+                }
+            }
+        }
+        finally
+        {
+            data.close();
+        }
+    }
+
+    /**
+     * @return position of the slot of the content, or of the free slot where it goes
+     */
+    private int find(String contentUrl, long hash) throws IOException
+    {
+        int mask = slots - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask)
+        {
+            int at = HEADER_SIZE + slot * SLOT_SIZE;
+            long slotHash = table.getLong(at);
+            if (slotHash == 0)
+            {
+                return at;
+            }
+            if (slotHash == hash && contentUrl.equals(readEntry(table.getLong(at + 8))[0]))
+            {
+                return at;
+            }
+        }
+    }
+
+    /**
+     * Double the table, it is rebuilt next to the index and renamed over it
+     */
+    private void grow() throws IOException
+    {
+        int newSlots = slots * 2;
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileChannel newChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            MappedByteBuffer newTable = map(newChannel, newSlots);
+            int mask = newSlots - 1;
+            for (int slot = 0; slot < slots; slot++)
+            {
+                int at = HEADER_SIZE + slot * SLOT_SIZE;
+                long hash = table.getLong(at);
+                if (hash == 0)
+                {
+                    continue;
+                }
+                int newSlot = (int) hash & mask;
+                while (newTable.getLong(HEADER_SIZE + newSlot * SLOT_SIZE) != 0)
+                {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                newTable.putLong(HEADER_SIZE + newSlot * SLOT_SIZE + 8, table.getLong(at + 8));
+                newTable.putLong(HEADER_SIZE + newSlot * SLOT_SIZE, hash);
+            }
+            channel.close();
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.debug("Content index grown to " + newSlots + " slots for " + entries + " contents");
+            channel = newChannel;
+            table = newTable;
+            slots = newSlots;
+            writeHeader(STATE_OPEN);
+        }
+        catch (IOException e)
+        {
+            newChannel.close();
+            throw e;
+        }
+    }
+
+    private long appendEntry(String contentUrl, String path) throws IOException
+    {
+        long offset = dataLength;
+        data.seek(offset);
+        data.writeUTF(contentUrl);
+        data.writeUTF(path);
+        dataLength = data.getFilePointer();
+        return offset;
+    }
+
+    private String[] readEntry(long offset) throws IOException
+    {
+        data.seek(offset);
+        String contentUrl = data.readUTF();
+        String path = data.readUTF();
+        return new String[] { contentUrl, path };
+    }
+
+    private void writeHeader(short state)
+    {
+        table.putInt(0, MAGIC);
+        table.putShort(4, VERSION);
+        table.putShort(6, state);
+        table.putInt(8, slots);
+        table.putInt(12, entries);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, int slots) throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+    }
+
+    private static File dataFile(File file)
+    {
+        return new File(file.getPath() + ".data");
+    }
+
+    /**
+     * @return slot count of an index closed properly, -1 if there is none
+     */
+    private static int readClosedHeader(File file, File dataFile) throws IOException
+    {
+        if (!file.isFile() || !dataFile.isFile() || file.length() < HEADER_SIZE)
+        {
+            return -1;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            if (raf.readInt() != MAGIC || raf.readShort() != VERSION)
+            {
+                log.warn("Not a content index, it is replaced: " + file.getPath());
+                return -1;
+            }
+            short state = raf.readShort();
+            int slots = raf.readInt();
+            if (state != STATE_CLOSED || Integer.bitCount(slots) != 1 || slots > MAX_SLOTS
+                    || file.length() != HEADER_SIZE + (long) slots * SLOT_SIZE)
+            {
+                log.info("Content index was not closed properly, it is rebuilt: " + file.getPath());
+                return -1;
+            }
+            return slots;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * List of the files not written because their content was already exported to another file, the 
+ * <code>.dedup</code> file of an export. 
+ * 
+ * Every line holds the path of the file that was not written and the path of the file with its content, 
+ * separated by a tab and relative to the export folder. The list is appended to by every run of the export.
+ */
+public class DedupManifest implements Closeable
+{
+    private final String basePath;
+    private final Writer out;
+    private long count = 0;
+
+    /**
+     * @param file the manifest, created if it does not exist
+     * @param basePath export folder, removed from the recorded paths
+     * @throws IOException
+     */
+    public DedupManifest(File file, String basePath) throws IOException
+    {
+        this.basePath = basePath;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 64 * 1024);
+    }
+
+    /**
+     * @param path the file that was not written
+     * @param exportedPath the file with the same content
+     * @throws IOException
+     */
+    public synchronized void record(String path, String exportedPath) throws IOException
+    {
+        out.write(relative(path));
+        out.write('\t');
+        out.write(relative(exportedPath));
+        out.write('\n');
+        count++;
+    }
+
+    /**
+     * @return number of files recorded since the manifest was opened
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    public synchronized void close() throws IOException
+    {
+        out.close();
+    }
+
+    private String relative(String path)
+    {
+        return path.startsWith(basePath) ? path.substring(basePath.length()) : path;
+    }
+}
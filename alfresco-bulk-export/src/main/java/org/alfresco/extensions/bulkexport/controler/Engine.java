@@ -16,25 +16,46 @@
  */
 package org.alfresco.extensions.bulkexport.controler;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
 import org.alfresco.extensions.bulkexport.dao.NodeRefRevision;
+import org.alfresco.extensions.bulkexport.dao.NodeSnapshot;
+import org.alfresco.extensions.bulkexport.model.ArchiveOutput;
+import org.alfresco.extensions.bulkexport.model.ExportSink;
 import org.alfresco.extensions.bulkexport.model.FileFolder;
 import org.alfresco.extensions.bulkexport.utils.ExportUtils;
+import org.alfresco.extensions.bulkexport.utils.PathIndex;
+import org.alfresco.extensions.bulkexport.utils.QueryLanguage;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
 import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,6 +71,12 @@ public class Engine
 {
     Log log = LogFactory.getLog(Engine.class);
 
+    /** maximum number of discovered nodes waiting to be exported */
+    private static final int NODE_QUEUE_CAPACITY = 10000;
+
+    /** number of nodes read at once with {@link AlfrescoExportDao#getNodeSnapshots(List)} */
+    private static final int SNAPSHOT_PAGE_SIZE = 100;
+
     /** Data Access Object */
     private AlfrescoExportDao dao;
     
@@ -66,11 +93,48 @@ public class Engine
      * */
     private boolean useNodeCache;
 
+    /** number of worker threads used to export nodes, 1 means export on the calling thread */
+    private int threads;
+
+    /** used to give every worker thread its own read only transaction */
+    private TransactionService transactionService;
+
     private AtomicInteger totalNodesToExport = new AtomicInteger();
     private AtomicInteger availableNodesToExport = new AtomicInteger();
     private AtomicInteger previouslyExportedNodes = new AtomicInteger();
+    private AtomicInteger exportedNodes = new AtomicInteger();
+
+    /** progress reported by {@link #getProgress()} */
+    private volatile ExportProgress.Phase phase = ExportProgress.Phase.PENDING;
+    private volatile long startTime = 0;
+    private volatile long exportStartTime = 0;
+
+    /** time spent in every stage of the export */
+    private ExportMetrics metrics = new ExportMetrics();
     private String cachedFileId = "-default-";
-    private boolean cancelExport = false;
+
+    /** journal of the nodes exported from the node cache, open while exporting from the cache */
+    private CompletionJournal completionJournal;
+    private CompletionJournal.Durability journalDurability = CompletionJournal.Durability.FLUSH;
+    private int journalBatchSize = CompletionJournal.DEFAULT_BATCH_SIZE;
+    private long journalInterval = CompletionJournal.DEFAULT_INTERVAL;
+
+    /** how the nodes modified between two dates are discovered */
+    private QueryLanguage queryLanguage = QueryLanguage.LUCENE;
+    private int queryPageSize = ExportUtils.PAGE_SIZE;
+
+    /** contents already exported by this export, open while exporting when the content is deduplicated */
+    private ContentIndex.Deduplication deduplication = ContentIndex.Deduplication.NONE;
+    private ContentIndex contentIndex;
+    private DedupManifest dedupManifest;
+
+    /** archive the files are written to while exporting, none to write them to the file system */
+    private ArchiveOutput.Format archiveFormat = ArchiveOutput.Format.NONE;
+    private long archiveVolumeSize = ArchiveOutput.DEFAULT_VOLUME_SIZE;
+
+    /** share of the nodes exported by this engine, null to export them all */
+    private ExportPartition partition;
+    private volatile boolean cancelExport = false;
     
     /**
      * Engine Default Builder
@@ -79,37 +143,112 @@ public class Engine
      * @param fileFolder File and Folder magager
      */
     public Engine(AlfrescoExportDao dao, FileFolder fileFolder, boolean exportVersions, boolean revisionHead, boolean useNodeCache) 
+    {
+        this(dao, fileFolder, exportVersions, revisionHead, useNodeCache, 1, null);
+    }
+
+    /**
+     * Engine Builder for a multi threaded export
+     * 
+     * @param dao Data Access Object
+     * @param fileFolder File and Folder magager
+     * @param threads number of worker threads, values lower than 2 export on the calling thread
+     * @param transactionService used to open the read only transactions of the discovery and the export, 
+     *        null to run in the transaction of the calling thread
+     */
+    public Engine(AlfrescoExportDao dao, FileFolder fileFolder, boolean exportVersions, boolean revisionHead, boolean useNodeCache, int threads, TransactionService transactionService) 
     {
         this.dao =  dao;
         this.fileFolder = fileFolder;
         this.exportVersions = exportVersions;
         this.revisionHead = revisionHead;
         this.useNodeCache = useNodeCache;
+        this.threads = (transactionService == null) ? 1 : Math.max(1, threads);
+        this.transactionService = transactionService;
     }
 
     /**
-     * Recursive method to export alfresco nodes to file system 
+     * Recursive method to export alfresco nodes to file system. A partitioned export records the state 
+     * of its partition in the {@link PartitionManifest} of the export.
      * 
      * @param nodeRef
      */
     public Pair<Integer, Integer> execute(NodeRef nodeRef, String fromDate, String toDate) throws Exception 
+    {
+        if (partition == null || nodeRef == null)
+        {
+            return doExecute(nodeRef, fromDate, toDate);
+        }
+
+        String exportId = exportId(nodeRef, fromDate, toDate);
+        String partitionFileId = partitionFileId(exportId);
+        PartitionManifest manifest = new PartitionManifest(fileFolder.basePath(), exportId);
+        log.info("Exporting " + partition + " of " + exportId + ", layout recorded in " + manifest.getFile().getPath());
+        manifest.record(partition, partitionFileId, "running", -1, -1);
+        try
+        {
+            Pair<Integer, Integer> counts = doExecute(nodeRef, fromDate, toDate);
+            manifest.record(partition, partitionFileId, isCancelExport() ? "cancelled" : "completed", counts.getFirst(), counts.getSecond());
+            return counts;
+        }
+        catch (CacheGeneratedException e)
+        {
+            manifest.record(partition, partitionFileId, "cached", e.getNodeCount(), -1);
+            throw e;
+        }
+        catch (Exception e)
+        {
+            manifest.record(partition, partitionFileId, "failed", -1, -1);
+            throw e;
+        }
+    }
+
+    private Pair<Integer, Integer> doExecute(NodeRef nodeRef, String fromDate, String toDate) throws Exception 
+    {
+        startTime = System.currentTimeMillis();
+        phase = ExportProgress.Phase.DISCOVERY;
+        try
+        {
+            return doExecuteNodes(nodeRef, fromDate, toDate);
+        }
+        finally
+        {
+            phase = ExportProgress.Phase.FINISHED;
+        }
+    }
+
+    private Pair<Integer, Integer> doExecuteNodes(final NodeRef nodeRef, String fromDate, String toDate) throws Exception 
     {    
         int totalCount = -1;
         int exportedCount = -1;
         if(null != nodeRef) {
+        	boolean rootIgnored = inReadOnlyTransaction(new RetryingTransactionCallback<Boolean>() {
+        		public Boolean execute() throws Throwable 
+        		{
+        			return dao.isNodeIgnored(nodeRef.toString());
+        		}
+        	});
         	if((null == fromDate || fromDate.isEmpty()) && (null == toDate || toDate.isEmpty())) {
 		        // case node is folder create a folder and execute recursively 
 		        // other else create file 
 		        log.debug("executing search with noderef");
-		        this.cachedFileId = nodeRef.getId();
+		        this.cachedFileId = partitionFileId(exportId(nodeRef, fromDate, toDate));
 		        
-		        if(!this.dao.isNodeIgnored(nodeRef.toString()))
+		        if(!rootIgnored && !useNodeCache && transactionService != null)
+		        {
+		            log.info("Find and export nodes at the same time (no history)");
+		            exportedCount = exportNodesWhileDiscovering(nodeRef, null, null);
+		            totalCount = totalNodesToExport.get();
+		            log.info("Nodes to export = " + totalCount);
+		            log.info("Exported Node Count = "+exportedCount);
+		        }
+		        else if(!rootIgnored)
 		        {    
 		            log.info("Find all nodes to export (no history)");
-		            List<NodeRef> allNodes = getNodesToExport(nodeRef);
-		            totalCount = allNodes.size();
-		            log.info("Nodes to export = " + allNodes.size());
-		            exportedCount = exportNodes(allNodes);
+		            Iterator<NodeRef> allNodes = getNodesToExport(nodeRef);
+		            totalCount = totalNodesToExport.get();
+		            log.info("Nodes to export = " + availableNodesToExport.get());
+		            exportedCount = exportNodesAndClose(allNodes);
 		            log.info("Exported Node Count = "+exportedCount);
 		        }    
 		        log.debug("executing search with noderef finished");
@@ -117,12 +256,23 @@ public class Engine
         	} else {
 		        log.debug("executing search with modified date");
 		        //this.cachedFileId = modifiedDate;
-		        this.cachedFileId = (null != fromDate && !fromDate.isEmpty())?"FROM-"+fromDate:"TO-"+toDate;
-	            List<NodeRef> allNodes = getNodesToExport(nodeRef, fromDate, toDate, this.cachedFileId);
-	            totalCount = allNodes.size();
-	            log.info("Nodes to export = " + allNodes.size());
-	            exportedCount = exportNodes(allNodes);
-	            log.info("Exported Node Count = "+exportedCount);
+		        this.cachedFileId = partitionFileId(exportId(nodeRef, fromDate, toDate));
+		        if(!useNodeCache && transactionService != null)
+		        {
+		            log.info("Find and export nodes at the same time (modified date)");
+		            exportedCount = exportNodesWhileDiscovering(nodeRef, fromDate, toDate);
+		            totalCount = totalNodesToExport.get();
+		            log.info("Nodes to export = " + totalCount);
+		            log.info("Exported Node Count = "+exportedCount);
+		        }
+		        else
+		        {
+		            Iterator<NodeRef> allNodes = getNodesToExport(nodeRef, fromDate, toDate, this.cachedFileId);
+		            totalCount = totalNodesToExport.get();
+		            log.info("Nodes to export = " + availableNodesToExport.get());
+		            exportedCount = exportNodesAndClose(allNodes);
+		            log.info("Exported Node Count = "+exportedCount);
+		        }
 		        log.debug("executing search with modified date finished");
 		        return new Pair<Integer, Integer>(totalCount, exportedCount);
         	}
@@ -130,68 +280,118 @@ public class Engine
         return null;
     }
 
-    private List<NodeRef> getNodesToExport(NodeRef nodeRef, String fromDate, String toDate, String cacheId) throws Exception {
-        List<NodeRef> nodes = null;
-       	totalNodesToExport.set(0);
-        //String cacheId = nodeRef.getId()+"-"+modifiedDate;
-        if (useNodeCache)
+    /**
+     * Run the callback in a new read only transaction, as the user running the export. The discovery and 
+     * the export open one for each folder or page of nodes, so no transaction stays open for the whole export. 
+     * The callback is retried when the transaction fails, it must only read: the nodes it returns are 
+     * counted, visited and exported once it has returned.
+     * 
+     * @param callback
+     * @return the result of the callback
+     */
+    <T> T inReadOnlyTransaction(RetryingTransactionCallback<T> callback) throws Exception 
+    {
+        return inReadOnlyTransaction(callback, true);
+    }
+
+    /**
+     * @param retrying false for a callback that writes files or journal records, which a retry would write again
+     */
+    private <T> T inReadOnlyTransaction(RetryingTransactionCallback<T> callback, boolean retrying) throws Exception 
+    {
+        if (transactionService != null)
         {
-            nodes = retrieveNodeListFromCache(cacheId);
+            RetryingTransactionHelper helper = transactionService.getRetryingTransactionHelper();
+            if (!retrying)
+            {
+                helper.setMaxRetries(0);
+            }
+            return helper.doInTransaction(callback, true, true);
         }
+        try
+        {
+            return callback.execute();
+        }
+        catch (Exception e)
+        {
+            throw e;
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new Exception(e);
+        }
+    }
 
-        if (nodes == null)
+    /**
+     * @return identifier of the whole export, the root node id or the date range
+     */
+    private String exportId(NodeRef nodeRef, String fromDate, String toDate) {
+        if((null == fromDate || fromDate.isEmpty()) && (null == toDate || toDate.isEmpty())) {
+            return nodeRef.getId();
+        }
+        return (null != fromDate && !fromDate.isEmpty())?"FROM-"+fromDate:"TO-"+toDate;
+    }
+
+    /**
+     * @return identifier of the cache and complete files, each partition has its own
+     */
+    private String partitionFileId(String exportId) {
+        return (partition == null) ? exportId : exportId + "-" + partition.getId();
+    }
+
+    private Iterator<NodeRef> getNodesToExport(NodeRef nodeRef, String fromDate, String toDate, String cacheId) throws Exception {
+       	totalNodesToExport.set(0);
+        if (useNodeCache)
         {
-            nodes = findAllNodes(nodeRef, fromDate, toDate);
-            if (useNodeCache)
+            Iterator<NodeRef> cachedNodes = retrieveNodeListFromCache(cacheId);
+            if (cachedNodes != null)
             {
-            		storeNodeListToCache(cacheId, nodes);
-                log.info("Generated Cached Node list");
-                log.info("Total Number of Nodes to Export: "+nodes.size());
-                throw new CacheGeneratedException("Generated Cached Node List Only", nodes.size());
+                log.info("Using Cached Node list");
+                return cachedNodes;
             }
         }
-        else
+
+        if (useNodeCache)
         {
-            log.info("Using Cached Node list");
+            long count = storeNodesToCache(cacheId, nodeRef, fromDate, toDate);
+            log.info("Generated Cached Node list");
+            log.info("Total Number of Nodes to Export: "+count);
+            throw new CacheGeneratedException("Generated Cached Node List Only", (int) count);
         }
 
-        return nodes;
-    	
+        List<NodeRef> nodes = findAllNodes(nodeRef, fromDate, toDate);
+        log.info("findAllNodes (nodeRef, fromDate, toDate) finished. Number of nodes: "+nodes.size());
+        availableNodesToExport.set(nodes.size());
+        return nodes.iterator();
     }
     
-    private List<NodeRef> getNodesToExport(NodeRef rootNode) throws Exception 
+    private Iterator<NodeRef> getNodesToExport(NodeRef rootNode) throws Exception 
     {
-        List<NodeRef> nodes = null;
        	totalNodesToExport.set(0);
         if (useNodeCache)
         {
-            nodes = retrieveNodeListFromCache(rootNode.getId());
-        }
-
-        if (nodes == null)
-        {
-            nodes = findAllNodes(rootNode);
-            if (useNodeCache)
+            Iterator<NodeRef> cachedNodes = retrieveNodeListFromCache(this.cachedFileId);
+            if (cachedNodes != null)
             {
-            		storeNodeListToCache(rootNode.getId(), nodes);
-                log.info("Generated Cached Node list");
-                log.info("Total Number of Nodes to Export: "+nodes.size());
-                throw new CacheGeneratedException("Generated Cached Node List Only", nodes.size());
+                log.info("Using Cached Node list");
+                return cachedNodes;
             }
-        }
-        else
-        {
-            log.info("Using Cached Node list");
+
+            long count = storeNodesToCache(this.cachedFileId, rootNode, null, null);
+            log.info("Generated Cached Node list");
+            log.info("Total Number of Nodes to Export: "+count);
+            throw new CacheGeneratedException("Generated Cached Node List Only", (int) count);
         }
 
-        return nodes;
+        List<NodeRef> nodes = findAllNodes(rootNode, null, null);
+        availableNodesToExport.set(nodes.size());
+        return nodes.iterator();
     }
 
-    private String nodeFileName(String id)
-    {
-        return nodeFile(id).getPath();
-    }
-    
     private File nodeFile(String id) {
         File fname = new File(fileFolder.basePath(), id + ".cache");
         return fname;
@@ -199,70 +399,154 @@ public class Engine
 
     private void storeNodeListToCache(String id, List<NodeRef> list) throws Exception 
     {
-        // get a better name
-        FileOutputStream fos= new FileOutputStream(nodeFileName(id));
-        ObjectOutputStream oos= new ObjectOutputStream(fos);
-        oos.writeObject(list);
-        oos.close();
-        fos.close();
+        NodeCacheFile.Writer writer = new NodeCacheFile.Writer(nodeFile(id));
+        try
+        {
+            for (NodeRef nodeRef : list)
+            {
+                writer.write(nodeRef);
+            }
+        }
+        catch (Exception e)
+        {
+            writer.abort();
+            throw e;
+        }
+        writer.close();
     }
 
-    private List<NodeRef> retrieveNodeListFromCache(String id) throws Exception 
+    /**
+     * Discover the nodes straight into the cache file, the node list is never held in memory
+     * 
+     * @param id
+     * @param rootNode
+     * @param fromDate
+     * @param toDate
+     * @return number of nodes cached
+     */
+    private long storeNodesToCache(String id, NodeRef rootNode, String fromDate, String toDate) throws Exception 
     {
-        List<NodeRef> list = null;
-        List<NodeRef> updatedList = null;
-        ArrayList<NodeRef> completedList = new ArrayList<NodeRef>();
+        NodeCacheFile.Writer writer = new NodeCacheFile.Writer(nodeFile(id));
+        boolean completed = false;
+        try
+        {
+            completed = findAllNodes(rootNode, fromDate, toDate, writer);
+        }
+        finally
+        {
+            if (completed)
+            {
+                writer.close();
+                // the positions recorded against a previous cache do not index this one
+                Files.deleteIfExists(completedFile().toPath());
+            }
+            else
+            {
+                // do not leave a partial node list behind to be picked up by the next run
+                writer.abort();
+            }
+        }
+        return writer.getCount();
+    }
 
-        FileInputStream fisCompleted = null;
-        ObjectInputStream oisCompleted = null;
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
-        if(!this.nodeFile(id).exists()) {
+    /**
+     * Open the node cache and return the nodes still to export. Nodes are read from disk as they are 
+     * iterated, the caller is responsible for closing the returned iterator.
+     * 
+     * @param id
+     * @return null if there is no cache for this id
+     */
+    private Iterator<NodeRef> retrieveNodeListFromCache(String id) throws Exception 
+    {
+        File cacheFile = this.nodeFile(id);
+        if(!cacheFile.exists()) {
         	return null;
         }
+        if(!NodeCacheFile.isNodeCacheFile(cacheFile)) {
+            log.info("Converting java serialized node cache to the binary format: " + cacheFile.getPath());
+            storeNodeListToCache(id, readSerializedNodeList(cacheFile));
+        }
+
+        NodeCacheFile.Reader reader = new NodeCacheFile.Reader(cacheFile);
+        BitSet completed;
         try
         {
-            fis = new FileInputStream(nodeFileName(id));
-            ois = new ObjectInputStream(fis);
-            list = (List<NodeRef>) ois.readObject();
-       		if(null != list) totalNodesToExport.set(list.size());
-        } catch (FileNotFoundException e) {
-            // this exception means we have no noelist cache - we just ignore and continue
-            log.info("could not open nodelist cache file");
-        } finally {
-        	if(null != ois) {
-        		ois.close();
-        	}
-        	if(null != fis) {
-        		fis.close();
-        	}
+            reader.verify();
+            this.completionJournal = openCompletionJournal(reader);
+            completed = this.completionJournal.getCompleted();
+        }
+        catch (Exception e)
+        {
+            reader.close();
+            throw e;
         }
-       	if(!this.completedFile().exists()) {
-       		return list;
-       	}
-       	if(null != list) {
-            updatedList = new ArrayList<NodeRef>(list);
-	    } else {
-	    	updatedList = list;
-	    }
+        int completedCount = completed.cardinality();
+        totalNodesToExport.set((int) reader.size());
+        previouslyExportedNodes.set(completedCount);
+        availableNodesToExport.set((int) reader.size() - completedCount);
+
+        log.info("List SIZE: "+ reader.size());
+        log.info("Completed List SIZE: "+ completedCount);
+        log.info("TO PROCESS SIZE: "+ availableNodesToExport.get());
+	    log.info("Retrieving Cached list is a sucess");
+	    return new CompletedNodeFilter(reader.iterator(), completed);
+    }
+
+    /**
+     * Read a node cache written by earlier versions, a java serialized {@link List} of {@link NodeRef}
+     */
+    @SuppressWarnings("unchecked")
+    private List<NodeRef> readSerializedNodeList(File cacheFile) throws Exception 
+    {
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+        try
+        {
+            return (List<NodeRef>) ois.readObject();
+        }
+        finally
+        {
+            ois.close();
+        }
+    }
+
+    /**
+     * Open the completion journal for the rest of the export, replaying the nodes it already holds
+     * 
+     * @param reader the node cache the journal belongs to
+     */
+    private CompletionJournal openCompletionJournal(NodeCacheFile.Reader reader) throws Exception 
+    {
+        File journal = this.completedFile();
+        if(CompletionJournal.isSerializedJournal(journal)) {
+            log.info("Converting java serialized completed file to the binary format: " + journal.getPath());
+            CompletionJournal.write(journal, readSerializedCompletedNodes(reader), reader.size(), reader.getChecksum());
+        }
+        CompletionJournal completionJournal = new CompletionJournal(journal, reader.size(), reader.getChecksum(), journalDurability, journalBatchSize, journalInterval);
+        log.info("Completed File Read Complete: " + completionJournal.getCompleted().cardinality());
+        return completionJournal;
+    }
+
+    /**
+     * Read a completed file written by earlier versions, a stream of serialized {@link NodeRef}, 
+     * and find the position of each node with one pass over the node cache
+     */
+    private BitSet readSerializedCompletedNodes(NodeCacheFile.Reader reader) throws Exception 
+    {
+        Set<NodeRef> completedNodes = new HashSet<NodeRef>();
+        FileInputStream fisCompleted = null;
+        ObjectInputStream oisCompleted = null;
         try {
         	fisCompleted = new FileInputStream(this.completedFile().getPath());
-        	oisCompleted = new ObjectInputStream(fisCompleted);
+        	oisCompleted = new ObjectInputStream(new BufferedInputStream(fisCompleted));
             while(true) {
             	try{
-            		//completedList.add((NodeRef)oisCompleted.readObject());
-            		NodeRef completedNodeRef = (NodeRef)oisCompleted.readObject();
-                    completedList.add(completedNodeRef);
-                    updatedList.remove(completedNodeRef);
-                    previouslyExportedNodes.set(completedList.size());
-                    ExportUtils.logInBatch(previouslyExportedNodes.get(), "Previously exported nodes count: ");
+                    completedNodes.add((NodeRef)oisCompleted.readObject());
+                    ExportUtils.logInBatch(completedNodes.size(), "Previously exported nodes count: ");
             	} catch (Exception e) {
             		log.info("Completed File Read Complete: "+e.getMessage());
             		break;
             	}
             }
-        } catch (FileNotFoundException ex) {
-        	log.debug("Could not open completed file");
         } finally {
         	if(null != oisCompleted) {
         		oisCompleted.close();
@@ -271,85 +555,313 @@ public class Engine
         		fisCompleted.close();
         	}
         }
-        /*
-        if(null != list) {
-        	list.removeAll(completedList);
+
+        BitSet completed = new BitSet();
+        NodeCacheFile.Reader.Cursor cursor = reader.iterator();
+        while (cursor.hasNext())
+        {
+            if (completedNodes.contains(cursor.next()))
+            {
+                completed.set((int) cursor.position());
+            }
         }
-        return list;
-        */
-        if(null != list) {
-            log.info("List SIZE: "+ list.size());
+        return completed;
+    }
+
+    /**
+     * Skips the cached nodes that were exported by a previous run, a constant time bitmap lookup per node
+     */
+    private static class CompletedNodeFilter implements Iterator<NodeRef>, Closeable
+    {
+        private final NodeCacheFile.Reader.Cursor cursor;
+        private final BitSet completed;
+        private NodeRef next = null;
+        private long nextPosition = -1;
+        private long position = -1;
+
+        CompletedNodeFilter(NodeCacheFile.Reader.Cursor cursor, BitSet completed)
+        {
+            this.cursor = cursor;
+            this.completed = completed;
         }
-        if(null != completedList) {
-            log.info("Completed List SIZE: "+completedList == null ? "NULL" : completedList.size());
+
+        public boolean hasNext()
+        {
+            while (next == null && cursor.hasNext())
+            {
+                NodeRef nodeRef = cursor.next();
+                if (!completed.get((int) cursor.position()))
+                {
+                    next = nodeRef;
+                    nextPosition = cursor.position();
+                }
+            }
+            return next != null;
         }
-        if(null != updatedList) {
-            log.info("TO PROCESS SIZE: "+updatedList == null ? "NULL" : updatedList.size());
+
+        public NodeRef next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            NodeRef nodeRef = next;
+            position = nextPosition;
+            next = null;
+            return nodeRef;
+        }
+
+        /**
+         * @return position in the node cache of the last node returned by {@link #next()}
+         */
+        public long position()
+        {
+            return position;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws IOException
+        {
+            cursor.close();
         }
-	    log.info("Retrieving Cached list is a sucess");
-	    return updatedList;
-    }
-
-    private List<NodeRef> findAllNodes(NodeRef nodeRef, String fromDate, String toDate) throws Exception {
-    	String path = this.dao.getPrefixPath(nodeRef);
-    	String queryStr = null;
-    	if((null != fromDate && !fromDate.isEmpty()) && (null == toDate || toDate.isEmpty())) {
-    		queryStr = "PATH:\""+path+"//*\" AND +@cm\\:modified:[\""+fromDate+"\" TO MAX]";
-    	} else if((null == fromDate || fromDate.isEmpty()) && (null != toDate && !toDate.isEmpty())) {
-    		queryStr = "PATH:\""+path+"//*\" AND +@cm\\:modified:[MIN TO \""+toDate+"\"]";
-    	} else if((null != fromDate && !fromDate.isEmpty()) && (null != toDate && !toDate.isEmpty())) {
-    		queryStr = "PATH:\""+path+"//*\" AND +@cm\\:modified:[\""+fromDate+"\" TO \""+toDate+"\"]";
-    	}
-    	List<NodeRef> nodes = this.dao.getAllNodesForQuery(queryStr, this);
-    	for(NodeRef node : nodes) {
-    		if(this.dao.isNodeIgnored(nodeRef.toString())) {
-    			nodes.remove(node);
-    		}
-    	}
-        log.info("findAllNodes (nodeRef, fromDate, toDate) finished. Number of nodes: "+nodes.size());
-        totalNodesToExport.set(nodes.size());
-        return nodes;
     }
-    
+
     /**
-     * Recursive find of all item head nodes from a given node ref
+     * Find all item head nodes from a given node ref, modified between the dates when given
      * 
      * @param nodeRef
+     * @param fromDate
+     * @param toDate
      */
-    private List<NodeRef> findAllNodes(NodeRef nodeRef) throws Exception 
+    private List<NodeRef> findAllNodes(NodeRef nodeRef, String fromDate, String toDate) throws Exception 
     {    
-        List<NodeRef> nodes = new ArrayList<NodeRef>();
+        final List<NodeRef> nodes = new ArrayList<NodeRef>();
+        findAllNodes(nodeRef, fromDate, toDate, new NodeVisitor() {
+            public boolean visit(NodeRef node) 
+            {
+                return nodes.add(node);
+            }
+        });
+        return nodes;
+    }
 
+    /**
+     * Find all item head nodes from a given node ref, handing every node to the visitor as it is found. 
+     * Without dates the tree is walked, otherwise the nodes modified between the dates are searched.
+     * 
+     * @param nodeRef
+     * @param fromDate
+     * @param toDate
+     * @param visitor
+     * @return false if the discovery was cancelled or stopped by the visitor
+     */
+    private boolean findAllNodes(NodeRef nodeRef, String fromDate, String toDate, final NodeVisitor visitor) throws Exception 
+    {    
         log.debug("findAllNodes (noderef)");
-       
-        if(!this.dao.isNodeIgnored(nodeRef.toString()) && !isCancelExport())
-        {    
-            if(this.dao.isFolder(nodeRef))
+
+        // the discovery time of a node runs from the return of the previous visit, so the time the 
+        // visitor waits for the export is not counted
+        final long[] lastVisit = { System.nanoTime() };
+        NodeVisitor counter = new NodeVisitor() {
+            public boolean visit(NodeRef node) throws Exception 
             {
-                nodes.add(nodeRef); // add folder as well
-                totalNodesToExport.incrementAndGet();
-                ExportUtils.logInBatch(totalNodesToExport);
-                List<NodeRef> children= this.dao.getChildren(nodeRef);
-                for (NodeRef child : children) 
-                {            
-                    nodes.addAll(this.findAllNodes(child));
+                if (partition != null && !partition.contains(dao.getNodeDbid(node)))
+                {
+                    return true;
                 }
-            } 
-            else 
-            {
-                nodes.add(nodeRef);
+                metrics.record(ExportMetrics.Stage.DISCOVERY, System.nanoTime() - lastVisit[0]);
                 totalNodesToExport.incrementAndGet();
                 ExportUtils.logInBatch(totalNodesToExport);
+                try
+                {
+                    return visitor.visit(node);
+                }
+                finally
+                {
+                    lastVisit[0] = System.nanoTime();
+                }
             }
-        }     
+        };
+        boolean completed;
+        if((null == fromDate || fromDate.isEmpty()) && (null == toDate || toDate.isEmpty())) {
+            completed = new NodeTreeWalker(this.dao, this).walk(nodeRef, counter);
+        } else {
+            completed = findModifiedNodes(nodeRef, fromDate, toDate, counter);
+        }
 
         log.debug("execute (noderef) finished");
-        return nodes;
+        return completed;
+    }
+
+    /**
+     * Search the nodes under the given node modified between the dates, results are handed to the 
+     * visitor page by page as the search returns them
+     * 
+     * @return false if the discovery was cancelled or stopped by the visitor
+     */
+    private boolean findModifiedNodes(final NodeRef nodeRef, String fromDate, String toDate, final NodeVisitor visitor) throws Exception 
+    {
+    	if(!queryLanguage.isSearched()) {
+    		return findModifiedNodesInTree(nodeRef, fromDate, toDate, visitor);
+    	}
+    	String path = null;
+    	if(queryLanguage == QueryLanguage.LUCENE) {
+    		path = inReadOnlyTransaction(new RetryingTransactionCallback<String>() {
+    			public String execute() throws Throwable 
+    			{
+    				return dao.getPrefixPath(nodeRef);
+    			}
+    		});
+    	}
+    	for(String queryStr : queryLanguage.modifiedQueries(nodeRef, path, fromDate, toDate)) {
+    		if(partition != null && !partition.isHashed() && queryLanguage.isPagedByDbid()) {
+    			// the other partitions are not searched at all
+    			queryStr = queryLanguage.withinDbids(queryStr, partition.getLo(), partition.getHi());
+    		}
+    		log.debug("search modified nodes: " + queryStr);
+    		final Iterator<NodeRef> nodes = this.dao.getAllNodesForQuery(queryStr, queryLanguage, queryPageSize, this);
+    		final List<NodeRef> batch = new ArrayList<NodeRef>(queryPageSize);
+    		// each page of results is searched in a transaction of its own, a retry keeps the nodes already 
+    		// taken from the search, and the page is only visited once the transaction has returned
+    		RetryingTransactionCallback<List<NodeRef>> readPage = new RetryingTransactionCallback<List<NodeRef>>() {
+    			public List<NodeRef> execute() throws Throwable 
+    			{
+    				while (batch.size() < queryPageSize && !isCancelExport() && nodes.hasNext()) {
+    					batch.add(nodes.next());
+    				}
+    				List<NodeRef> page = new ArrayList<NodeRef>(batch.size());
+    				for (NodeRef node : batch) {
+    					if(!dao.isNodeIgnored(node.toString())) {
+    						page.add(node);
+    					}
+    				}
+    				return page;
+    			}
+    		};
+    		do {
+    			batch.clear();
+    			for (NodeRef node : inReadOnlyTransaction(readPage)) {
+    				if(isCancelExport() || !visitor.visit(node)) {
+    					return false;
+    				}
+    			}
+    		} while (!batch.isEmpty());
+    		if(isCancelExport()) {
+    			return false;
+    		}
+    	}
+    	return !isCancelExport();
+    }
+
+    /**
+     * Walk the tree under the given node through the database and keep the nodes modified between the dates, 
+     * for repositories whose index is too slow or not trusted. The time taken is logged every page of nodes found.
+     * 
+     * @return false if the discovery was cancelled or stopped by the visitor
+     */
+    private boolean findModifiedNodesInTree(NodeRef nodeRef, String fromDate, String toDate, final NodeVisitor visitor) throws Exception 
+    {
+        final Date from = ExportUtils.parseDate(fromDate);
+        final Date to = ExportUtils.parseDate(toDate);
+        final long start = System.currentTimeMillis();
+        final long[] pageStart = { start };
+        final int[] found = { 0 };
+        boolean completed = new NodeTreeWalker(this.dao, this).walk(nodeRef, new NodeVisitor() {
+            public boolean visit(NodeRef node) throws Exception 
+            {
+                Date modified = (Date) dao.getProperties(node).get(ContentModel.PROP_MODIFIED);
+                if (modified == null || (from != null && modified.before(from)) || (to != null && modified.after(to)))
+                {
+                    return true;
+                }
+                if (++found[0] % queryPageSize == 0)
+                {
+                    long now = System.currentTimeMillis();
+                    log.info(QueryLanguage.DB + " page of " + queryPageSize + " nodes found in " + (now - pageStart[0]) + " ms, " 
+                            + found[0] + " nodes in " + (now - start) + " ms so far");
+                    pageStart[0] = now;
+                }
+                return visitor.visit(node);
+            }
+        });
+        log.info(QueryLanguage.DB + " walk found " + found[0] + " nodes in " + (System.currentTimeMillis() - start) + " ms");
+        return completed;
+    }
+
+    /**
+     * Export the nodes while they are still being discovered. A separate thread walks the tree or runs the 
+     * search, as the user running the export, and feeds a bounded {@link NodeQueue} that the export drains at the same time, 
+     * so memory stays flat whatever the size of the tree.
+     * 
+     * @param rootNode
+     * @param fromDate
+     * @param toDate
+     * @return number of nodes exported
+     */
+    private int exportNodesWhileDiscovering(final NodeRef rootNode, final String fromDate, final String toDate) throws Exception 
+    {
+        totalNodesToExport.set(0);
+        availableNodesToExport.set(0);
+        final NodeQueue queue = new NodeQueue(NODE_QUEUE_CAPACITY, availableNodesToExport);
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+
+        Thread discovery = new Thread(new Runnable() {
+            public void run() 
+            {
+                Throwable failure = null;
+                try
+                {
+                    AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+                        public Void doWork() throws Exception 
+                        {
+                            findAllNodes(rootNode, fromDate, toDate, queue);
+                            return null;
+                        }
+                    }, runAsUser);
+                    log.info("findAllNodes (noderef) finished. Number of nodes: " + totalNodesToExport.get());
+                    phase = ExportProgress.Phase.EXPORT;
+                }
+                catch (Throwable e)
+                {
+                    log.error("Node discovery failed for noderef = " + rootNode.toString());
+                    failure = e;
+                }
+                queue.finish(failure);
+            }
+        }, "bulk-export-discovery-" + rootNode.getId());
+        discovery.setDaemon(true);
+        discovery.start();
+
+        int exportedCount;
+        try
+        {
+            exportedCount = exportNodes(queue);
+        }
+        finally
+        {
+            queue.close();
+            discovery.join();
+        }
+
+        Throwable e = queue.getFailure();
+        if (e instanceof Exception)
+        {
+            throw (Exception) e;
+        }
+        else if (e != null)
+        {
+            throw new Exception(e);
+        }
+        return exportedCount;
     }
 
-    private void exportHeadRevision(NodeRef nodeRef) throws Exception
+    private void exportHeadRevision(NodeSnapshot snapshot) throws Exception
     {
-        this.createFile(nodeRef);
+        this.createFile(snapshot);
     }
 
     private void exportFullRevisionHistory(NodeRef nodeRef) throws Exception
@@ -367,10 +879,12 @@ public class Engine
 
             String headRevision = (String)sortedKeys.get(sortedKeys.size()-1);
 
+            // versions which only changed metadata share the content of the previous version, it is written once
+            Map<String, String> exportedContent = new HashMap<String, String>();
             for (String revision : nodes.keySet()) 
             {
                 NodeRefRevision nodeRevision = nodes.get(revision);
-                this.createFile(nodeRef, nodeRevision.node, revision, headRevision == revision);
+                this.createFile(nodeRef, nodeRevision.node, revision, headRevision == revision, exportedContent);
                 if(headRevision == revision) {
                 	//this.createFile(nodeRef);
                 }
@@ -380,97 +894,398 @@ public class Engine
         {
             // no revision history so lets just create the most recent revision
             log.debug("execute (noderef) no revision history found, dump node as head revision");
-            this.createFile(nodeRef, nodeRef, "1.0", true);
+            this.createFile(nodeRef, nodeRef, "1.0", true, null);
         }
     }
 
     /**
-     * Iterate over nodes to export, and do appropriate action
+     * Export the nodes and release the node cache file they may be read from, with its completion journal
      * 
      * @param nodesToExport
      */
-    private int exportNodes(List<NodeRef> nodesToExport) throws Exception 
+    private int exportNodesAndClose(Iterator<NodeRef> nodesToExport) throws Exception 
     {
-        //final int NODES_TO_PROCESS = 100;
-
-        //int logCount = nodesToExport.size();
-        availableNodesToExport.set(nodesToExport.size());
-
-        for (NodeRef nodeRef : nodesToExport) 
+        phase = ExportProgress.Phase.EXPORT;
+        try
         {
-        	if(isCancelExport()) {
-        		break;
-        	}
-            //logCount--;
-            availableNodesToExport.decrementAndGet();
-            if(this.dao.isFolder(nodeRef))
+            return exportNodes(nodesToExport);
+        }
+        finally
+        {
+            try
             {
-                this.createFolder(nodeRef);
-                if(this.useNodeCache) this.storeCompletedNodeToCache(nodeRef);
-            } 
-            else
+                if (nodesToExport instanceof Closeable)
+                {
+                    ((Closeable) nodesToExport).close();
+                }
+            }
+            finally
             {
-                if (exportVersions)
+                if (completionJournal != null)
                 {
-                    exportFullRevisionHistory(nodeRef);
-                    if(this.useNodeCache) this.storeCompletedNodeToCache(nodeRef);
+                    completionJournal.close();
+                    completionJournal = null;
                 }
-                else
+            }
+        }
+    }
+
+    /**
+     * Iterate over nodes to export, and do appropriate action. The iterator may still be fed by the 
+     * discovery, availableNodesToExport is decremented for every node taken from it.
+     * 
+     * @param nodesToExport
+     * @return number of nodes exported
+     */
+    private int exportNodes(Iterator<NodeRef> nodesToExport) throws Exception 
+    {
+        exportStartTime = System.currentTimeMillis();
+        openSink();
+        try
+        {
+            openExportedIndex();
+            openContentIndex();
+            try
+            {
+                if (threads > 1)
                 {
-                    exportHeadRevision(nodeRef);
-                    if(this.useNodeCache) this.storeCompletedNodeToCache(nodeRef);
+                    return exportNodesInParallel(nodesToExport);
                 }
+                return exportNodesOnThisThread(nodesToExport);
             }
-            ExportUtils.logInBatch(availableNodesToExport.get(), "Remaining Parent Nodes to process: ");
+            finally
+            {
+                closeContentIndex();
+            }
+        }
+        finally
+        {
+            fileFolder.setExportedIndex(null);
+            closeSink();
+        }
+    }
+
+    /**
+     * Write the files of the export to archive volumes named after the export
+     */
+    private void openSink()
+    {
+        if (archiveFormat != ArchiveOutput.Format.NONE)
+        {
+            fileFolder.setSink(new ArchiveOutput(fileFolder.basePath(), this.cachedFileId, archiveFormat, archiveVolumeSize));
+        }
+    }
+
+    /**
+     * Scan the export folder once, so the files already exported are found without a file system call 
+     * for each of them
+     */
+    private void openExportedIndex()
+    {
+        if (!fileFolder.isScapeExported() || !fileFolder.getSink().isLocal())
+        {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        PathIndex index = PathIndex.scan(new File(fileFolder.basePath()), Math.max(threads, PathIndex.DEFAULT_SCAN_THREADS));
+        fileFolder.setExportedIndex(index);
+        log.info("Indexed " + index.size() + " files of the export folder in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Close the sink of the export, once all its files are written
+     */
+    private void closeSink() throws Exception
+    {
+        ExportSink sink = fileFolder.getSink();
+        sink.close();
+        if (sink instanceof ArchiveOutput)
+        {
+            ArchiveOutput archive = (ArchiveOutput) sink;
+            log.info("Archived " + archive.getEntries() + " entries in " + archive.getVolumes() + " volumes");
+        }
+    }
+
+    /**
+     * Open the index of the exported contents, and the manifest of the files it saves from being written
+     */
+    private void openContentIndex() throws Exception
+    {
+        if (deduplication == ContentIndex.Deduplication.NONE)
+        {
+            return;
+        }
+        contentIndex = new ContentIndex(new File(fileFolder.basePath(), this.cachedFileId + ".content"));
+        if (deduplication == ContentIndex.Deduplication.MANIFEST)
+        {
+            try
+            {
+                dedupManifest = new DedupManifest(new File(fileFolder.basePath(), this.cachedFileId + ".dedup"), fileFolder.basePath());
+            }
+            catch (IOException e)
+            {
+                contentIndex.close();
+                contentIndex = null;
+                throw e;
+            }
+        }
+    }
+
+    private void closeContentIndex() throws Exception
+    {
+        try
+        {
+            if (dedupManifest != null)
+            {
+                log.info("Files with a content already exported listed in the dedup manifest: " + dedupManifest.getCount());
+                dedupManifest.close();
+            }
+        }
+        finally
+        {
+            dedupManifest = null;
+            if (contentIndex != null)
+            {
+                log.info("Contents in the content index: " + contentIndex.size());
+                contentIndex.close();
+                contentIndex = null;
+            }
+        }
+    }
+
+    /**
+     * Export the nodes on the calling thread, each page of nodes is read in a read only transaction of its own 
+     * and each node exported in another
+     * 
+     * @param nodesToExport
+     * @return number of nodes exported
+     */
+    private int exportNodesOnThisThread(Iterator<NodeRef> nodesToExport) throws Exception 
+    {
+        int exportedCount = 0;
+        List<NodeRef> page = new ArrayList<NodeRef>(SNAPSHOT_PAGE_SIZE);
+        long[] positions = new long[SNAPSHOT_PAGE_SIZE];
+        while (nextPage(nodesToExport, page, positions)) 
+        {
+            List<NodeSnapshot> snapshots = getNodeSnapshots(page);
+            for (int i = 0; i < snapshots.size(); i++) 
+            {
+                if(isCancelExport()) {
+                    break;
+                }
+                availableNodesToExport.decrementAndGet();
+                exportedNodes.incrementAndGet();
+                exportedCount++;
+                exportNodeInTransaction(snapshots.get(i), positions[i]);
+                ExportUtils.logInBatch(availableNodesToExport.get(), "Remaining Parent Nodes to process: ");
+            }
+        }
+        return exportedCount;
+    }
+
+    /**
+     * Export the nodes with a pool of worker threads. Every worker runs as the user that started the export 
+     * and in its own read only transaction. Folders are exported on the calling thread as they are met in 
+     * the list, so a folder is always on disk before any of its children are handed to a worker. The pages 
+     * of nodes and the folders are read in short transactions of their own.
+     * 
+     * @param nodesToExport
+     * @return number of nodes exported
+     */
+    private int exportNodesInParallel(Iterator<NodeRef> nodesToExport) throws Exception 
+    {
+        log.info("Exporting nodes with " + threads + " threads");
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger exportedCount = new AtomicInteger();
 
-            /*
-            if (logCount % NODES_TO_PROCESS == 0)
+        // a full queue makes the calling thread run the task itself, which keeps the queue bounded
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 10), new ThreadPoolExecutor.CallerRunsPolicy());
+        try
+        {
+            List<NodeRef> page = new ArrayList<NodeRef>(SNAPSHOT_PAGE_SIZE);
+            long[] positions = new long[SNAPSHOT_PAGE_SIZE];
+            while (failure.get() == null && nextPage(nodesToExport, page, positions)) 
             {
-                log.info("Remaining Parent Nodes to process " + logCount);
+                List<NodeSnapshot> snapshots = getNodeSnapshots(page);
+                for (int i = 0; i < snapshots.size(); i++) 
+                {
+                    if(isCancelExport() || failure.get() != null) {
+                        break;
+                    }
+                    final NodeSnapshot snapshot = snapshots.get(i);
+                    final long position = positions[i];
+                    if(snapshot.folder)
+                    {
+                        availableNodesToExport.decrementAndGet();
+                        exportedNodes.incrementAndGet();
+                        exportedCount.incrementAndGet();
+                        exportNodeInTransaction(snapshot, position);
+                        continue;
+                    }
+                    pool.execute(new Runnable() {
+                        public void run() 
+                        {
+                            if(isCancelExport() || failure.get() != null) {
+                                return;
+                            }
+                            availableNodesToExport.decrementAndGet();
+                            exportedNodes.incrementAndGet();
+                            exportedCount.incrementAndGet();
+                            try
+                            {
+                                AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+                                    public Void doWork() throws Exception 
+                                    {
+                                        exportNodeInTransaction(snapshot, position);
+                                        return null;
+                                    }
+                                }, runAsUser);
+                            }
+                            catch (Throwable e)
+                            {
+                                log.error("Worker failed to export noderef = " + snapshot.nodeRef.toString());
+                                failure.compareAndSet(null, e);
+                            }
+                            ExportUtils.logInBatch(availableNodesToExport.get(), "Remaining Parent Nodes to process: ");
+                        }
+                    });
+                }
             }
-            */
         }
-        //return nodesToExport.size() - logCount;
-        return nodesToExport.size() - availableNodesToExport.get();
+        finally
+        {
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                log.info("Waiting for export workers to finish, remaining nodes: " + availableNodesToExport.get());
+            }
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof Exception)
+        {
+            throw (Exception) e;
+        }
+        else if (e != null)
+        {
+            throw new Exception(e);
+        }
+        return exportedCount.get();
+    }
+
+    /**
+     * Position in the node cache of the node last returned by the iterator
+     * 
+     * @param nodesToExport
+     * @return -1 when the nodes do not come from the node cache
+     */
+    private long cachePosition(Iterator<NodeRef> nodesToExport)
+    {
+        if (nodesToExport instanceof CompletedNodeFilter)
+        {
+            return ((CompletedNodeFilter) nodesToExport).position();
+        }
+        return -1;
+    }
+
+    /**
+     * Take the next page of nodes to read at once, with their position in the node cache
+     * 
+     * @param nodesToExport
+     * @param page cleared and filled with up to {@link #SNAPSHOT_PAGE_SIZE} nodes
+     * @param positions filled with the cache position of each node of the page
+     * @return false when there are no more nodes, or the export was cancelled
+     */
+    private boolean nextPage(Iterator<NodeRef> nodesToExport, List<NodeRef> page, long[] positions)
+    {
+        page.clear();
+        while (page.size() < SNAPSHOT_PAGE_SIZE && !isCancelExport() && nodesToExport.hasNext())
+        {
+            page.add(nodesToExport.next());
+            positions[page.size() - 1] = cachePosition(nodesToExport);
+        }
+        return !page.isEmpty();
+    }
+
+    /**
+     * Export a single node, its revisions when requested, and record it as completed in the node cache
+     * 
+     * @param snapshot
+     * @param cachePosition position of the node in the node cache, -1 if not exported from the cache
+     */
+    private void exportNode(NodeSnapshot snapshot, long cachePosition) throws Exception 
+    {
+        if(snapshot.folder)
+        {
+            this.createFolder(snapshot);
+        } 
+        else if (exportVersions)
+        {
+            exportFullRevisionHistory(snapshot.nodeRef);
+        }
+        else
+        {
+            exportHeadRevision(snapshot);
+        }
+        if(this.completionJournal != null && cachePosition >= 0) this.storeCompletedNodeToCache(cachePosition);
     }
 
     private File completedFile() {
         File completeFile = new File(fileFolder.basePath(), this.cachedFileId + ".complete");
         return completeFile;
     }
-    private void storeCompletedNodeToCache(NodeRef nodeRef) throws Exception {
-       	FileOutputStream fos = null;
-       	ObjectOutputStream oos = null;
-        try {
-	        if(!completedFile().exists()) {
-	        	//completedFile().createNewFile();
-	        	fos = new FileOutputStream(completedFile().getPath(), true);
-	        	oos = new ObjectOutputStream(fos);
-	        } else {
-	        	fos = new FileOutputStream(completedFile().getPath(), true);
-        		oos = new AppendingObjectOutputStream(fos);
-        	}
-        	oos.writeObject(nodeRef);
-        } finally {
-        	if(null != oos) {
-        		oos.close();
-        	}
-        	if(null != fos) {
-        		fos.close();
-        	}
+    private void storeCompletedNodeToCache(final long cachePosition) throws Exception {
+        ExportSink sink = fileFolder.getSink();
+        if (sink instanceof ArchiveOutput) {
+            // the entries of the node may still be buffered, it is exported once its volume is complete
+            ((ArchiveOutput) sink).afterVolumeClose(new ArchiveOutput.VolumeCommit() {
+                public void committed() throws IOException
+                {
+                    recordCompletedNode(cachePosition);
+                }
+            });
+            return;
         }
+        recordCompletedNode(cachePosition);
+    }
+    private void recordCompletedNode(long cachePosition) throws IOException {
+        long start = System.nanoTime();
+        this.completionJournal.record((int) cachePosition);
+        metrics.record(ExportMetrics.Stage.JOURNAL, System.nanoTime() - start);
     }
-    
-    private class AppendingObjectOutputStream extends ObjectOutputStream {
-    	public AppendingObjectOutputStream(OutputStream out) throws IOException {
-    		super(out);
-    	}
 
-    	@Override
-    	protected void writeStreamHeader() throws IOException {
-    		reset();
-    	}
+    /**
+     * Read a page of nodes, timed as one property fetch
+     */
+    /**
+     * Read a page of nodes in a read only transaction of its own, the only work of the export it retries
+     */
+    private List<NodeSnapshot> getNodeSnapshots(final List<NodeRef> page) throws Exception {
+        long start = System.nanoTime();
+        List<NodeSnapshot> snapshots = inReadOnlyTransaction(new RetryingTransactionCallback<List<NodeSnapshot>>() {
+            public List<NodeSnapshot> execute() throws Throwable 
+            {
+                return dao.getNodeSnapshots(page);
+            }
+        });
+        metrics.record(ExportMetrics.Stage.PROPERTY_FETCH, System.nanoTime() - start);
+        return snapshots;
+    }
 
+    /**
+     * Export a node in a read only transaction of its own that is never retried, the export writes files 
+     * and records the node as completed, a failed export fails the node instead of writing it twice
+     */
+    private void exportNodeInTransaction(final NodeSnapshot snapshot, final long cachePosition) throws Exception {
+        inReadOnlyTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable 
+            {
+                exportNode(snapshot, cachePosition);
+                return null;
+            }
+        }, false);
     }
     
     
@@ -478,9 +1293,10 @@ public class Engine
      * Create file (Document and Bulk XML Meta data)
      * 
      * @param file 
+     * @param exportedContent files already exported for the other versions of the node by content url, null to always copy the content
      * @throws Exception
      */
-    private void createFile(NodeRef headNode, NodeRef file, String revision, boolean isHeadRevision) throws Exception 
+    private void createFile(NodeRef headNode, NodeRef file, String revision, boolean isHeadRevision, Map<String, String> exportedContent) throws Exception 
     {
         String path = null;
         if (revision == null)
@@ -490,7 +1306,9 @@ public class Engine
         }
 
         //path = this.dao.getPath(headNode) + ".v" + revision;
+        long start = System.nanoTime();
         path = this.dao.getPath(headNode);
+        metrics.record(ExportMetrics.Stage.GET_PATH, System.nanoTime() - start);
 
         // if we are exporting using the revisions compatible with alfresco bulk import then we do not number the head(most recent) revisoon
         if(isHeadRevision) {
@@ -506,17 +1324,66 @@ public class Engine
 	        }
         }
 
-        doCreateFile(file, path, revision);
+        doCreateFile(file, path, revision, null, exportedContent);
     }
 
-    private void createFile(NodeRef file) throws Exception 
+    private void createFile(NodeSnapshot snapshot) throws Exception 
     {
-        String path = null;
-        path = this.dao.getPath(file);
-        doCreateFile(file, path, null);
+        long start = System.nanoTime();
+        String path = this.dao.getPath(snapshot);
+        metrics.record(ExportMetrics.Stage.GET_PATH, System.nanoTime() - start);
+        doCreateFile(snapshot.nodeRef, path, null, snapshot, null);
+    }
+
+    /**
+     * @param fname file being exported, never returned
+     * @return the file a content was already exported to, by the other versions of the node or by the whole export
+     */
+    private String findExportedContent(String contentUrl, Map<String, String> exportedContent, String fname) throws Exception 
+    {
+        String exportedFile = (exportedContent == null) ? null : exportedContent.get(contentUrl);
+        if (exportedFile == null && contentIndex != null)
+        {
+            exportedFile = contentIndex.get(contentUrl);
+        }
+        if (exportedFile != null && Paths.get(exportedFile).toAbsolutePath().normalize().equals(Paths.get(fname).toAbsolutePath().normalize()))
+        {
+            // the index is kept between runs, a file exported again finds itself and is written as any other
+            return null;
+        }
+        return exportedFile;
+    }
+
+    /**
+     * Link or copy the exported file, or list the file in the dedup manifest instead of writing it
+     * 
+     * @return false if the exported file does not exist anymore
+     */
+    private boolean storeExportedContent(String exportedFile, String fname) throws Exception 
+    {
+        ExportSink sink = fileFolder.getSink();
+        if (!sink.isLocal() && dedupManifest == null)
+        {
+            return sink.addLink(fname, exportedFile);
+        }
+        if (dedupManifest == null)
+        {
+            return this.dao.storeExportedContentInFile(exportedFile, fname);
+        }
+        if (sink.isLocal() && !new File(exportedFile).isFile())
+        {
+            return false;
+        }
+        dedupManifest.record(fname, exportedFile);
+        return true;
     }
 
-    private void doCreateFile(NodeRef file, String path, String revision) throws Exception 
+    /**
+     * @param snapshot metadata of the node already read, null to read it now
+     * @param exportedContent files already exported by content url, the file is linked to the one with 
+     *        the same content instead of copied, null to always copy the content
+     */
+    private void doCreateFile(NodeRef file, String path, String revision, NodeSnapshot snapshot, Map<String, String> exportedContent) throws Exception 
     {
         //get Informations
         log.debug("doCreateFile (noderef)");
@@ -534,17 +1401,56 @@ public class Engine
         	}
             String fname = this.fileFolder.createFullPath(contentPath);
             log.debug("doCreateFile file =" + fname);
-            if (this.dao.getContentAndStoreInFile(file, fname) == false)
+            long start = System.nanoTime();
+            String contentUrl = (exportedContent == null && contentIndex == null) ? null : this.dao.getContentUrl(file);
+            String exportedFile = (contentUrl == null) ? null : findExportedContent(contentUrl, exportedContent, fname);
+            if (exportedFile != null && storeExportedContent(exportedFile, fname))
             {
-                log.debug("doCreateFile ignore this file"); 
-                return;
+                log.debug("doCreateFile same content as " + exportedFile);
+                this.fileFolder.markExported(fname);
+                metrics.record(ExportMetrics.Stage.CONTENT_COPY, System.nanoTime() - start);
+            }
+            else
+            {
+                // content is copied file to file on the file system, and streamed to any other sink
+                ExportSink sink = this.fileFolder.getSink();
+                long size = sink.isLocal() ? this.dao.getContentAndStoreInFile(file, fname) : this.dao.storeContentInSink(file, sink, fname);
+                if (size < 0)
+                {
+                    log.debug("doCreateFile ignore this file"); 
+                    return;
+                }
+                metrics.record(ExportMetrics.Stage.CONTENT_COPY, System.nanoTime() - start);
+                metrics.addContentBytes(size);
+                this.fileFolder.markExported(fname);
+                if (contentUrl != null && exportedContent != null)
+                {
+                    exportedContent.put(contentUrl, fname);
+                }
+                if (contentUrl != null && contentIndex != null)
+                {
+                    contentIndex.put(contentUrl, fname);
+                }
+            }
+            if (snapshot != null)
+            {
+                type = snapshot.type;
+                aspects = snapshot.aspects;
+                properties = snapshot.properties;
+            }
+            else
+            {
+                start = System.nanoTime();
+                type = this.dao.getType(file);
+                aspects = this.dao.getAspectsAsString(file);
+                properties = this.dao.getPropertiesAsString(file);
+                metrics.record(ExportMetrics.Stage.PROPERTY_FETCH, System.nanoTime() - start);
             }
-            type = this.dao.getType(file);
-            aspects = this.dao.getAspectsAsString(file);
-            properties = this.dao.getPropertiesAsString(file);
             
             //Create Files
+            start = System.nanoTime();
             this.fileFolder.insertFileProperties(file, type, aspects, properties, path, revision);
+            metrics.record(ExportMetrics.Stage.XML_WRITE, System.nanoTime() - start);
             type = null;
             properties = null;
             aspects = null;
@@ -561,25 +1467,86 @@ public class Engine
     /**
      * Create Folder and XML Metadata
      * 
-     * @param file
+     * @param folder
      * @throws Exception
      */
-    private void createFolder(NodeRef folder) throws Exception 
+    private void createFolder(NodeSnapshot folder) throws Exception 
     {
         //Get Data
         log.debug("createFolder");
+        long start = System.nanoTime();
         String path = this.dao.getPath(folder);
+        metrics.record(ExportMetrics.Stage.GET_PATH, System.nanoTime() - start);
         log.debug("createFolder path="+path);
-        String type = this.dao.getType(folder);
-        log.debug("createFolder type="+type);
-        List<String> aspects = this.dao.getAspectsAsString(folder);
-        Map<String, String> properties = this.dao.getPropertiesAsString(folder);
+        log.debug("createFolder type="+folder.type);
         
         //Create Folder and XMl Metadata
         this.fileFolder.createFolder(path);
-        this.fileFolder.insertFileProperties(folder, type, aspects, properties, path, null);
+        start = System.nanoTime();
+        this.fileFolder.insertFileProperties(folder.nodeRef, folder.type, folder.aspects, folder.properties, path, null);
+        metrics.record(ExportMetrics.Stage.XML_WRITE, System.nanoTime() - start);
     }
 
+	/**
+	 * Set how the completion journal of a node cache export is committed
+	 * 
+	 * @param durability how far every group of records is pushed towards the disk
+	 * @param batchSize number of exported nodes between two commits
+	 * @param interval maximum milliseconds between two commits
+	 */
+	public void setCompletionJournalPolicy(CompletionJournal.Durability durability, int batchSize, long interval) {
+		this.journalDurability = durability;
+		this.journalBatchSize = batchSize;
+		this.journalInterval = interval;
+	}
+	/**
+	 * Set the archive the files are written to
+	 * 
+	 * @param format {@link ArchiveOutput.Format#NONE} to write the files to the file system
+	 * @param volumeSize bytes written to a volume before the next one is started
+	 */
+	public void setArchive(ArchiveOutput.Format format, long volumeSize) {
+		this.archiveFormat = format;
+		this.archiveVolumeSize = volumeSize;
+	}
+	/**
+	 * Set what is done with a content already exported to another file of the export
+	 * 
+	 * @param deduplication
+	 */
+	public void setContentDeduplication(ContentIndex.Deduplication deduplication) {
+		this.deduplication = deduplication;
+	}
+	/**
+	 * Set how the nodes modified between two dates are discovered
+	 * 
+	 * @param language
+	 * @param pageSize number of nodes searched at once
+	 */
+	public void setDiscoveryQuery(QueryLanguage language, int pageSize) {
+		this.queryLanguage = language;
+		this.queryPageSize = Math.max(1, pageSize);
+	}
+	/**
+	 * Export only the nodes of the given partition, each partition has its own cache and complete files
+	 * 
+	 * @param partition null to export all the nodes
+	 */
+	public void setPartition(ExportPartition partition) {
+		this.partition = partition;
+	}
+	public ExportPartition getPartition() {
+		return partition;
+	}
+	/**
+	 * @param metrics where the time of every stage is recorded, usually adding to the metrics of all the exports
+	 */
+	public void setMetrics(ExportMetrics metrics) {
+		this.metrics = metrics;
+	}
+	public ExportMetrics getMetrics() {
+		return metrics;
+	}
 	public boolean isCancelExport() {
 		return cancelExport;
 	}
@@ -595,4 +1562,15 @@ public class Engine
 	public int getPreviouslyExportedNodes() {
 		return this.previouslyExportedNodes.get();
 	}
+	/**
+	 * @return the progress of the export now, read from the counters without locking
+	 */
+	public ExportProgress getProgress() {
+		long now = System.currentTimeMillis();
+		long started = startTime;
+		long exportStarted = exportStartTime;
+		return new ExportProgress(phase, totalNodesToExport.get(), availableNodesToExport.get(), previouslyExportedNodes.get(), 
+				exportedNodes.get(), dao.getContentTransferStats().getBytes(), 
+				started > 0 ? now - started : 0, exportStarted > 0 ? now - exportStarted : 0);
+	}
 }
@@ -0,0 +1,134 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms of the stages of an export, and the bytes of content it wrote. Every engine 
+ * has its own metrics, which also add their figures to the metrics of all the exports published 
+ * through JMX.
+ */
+public class ExportMetrics implements ExportMetricsMXBean
+{
+    public enum Stage
+    {
+        /** finding the next node to export, by tree walk or search */
+        DISCOVERY,
+        /** building the export path of a node */
+        GET_PATH,
+        /** reading the type, aspects and properties of the nodes */
+        PROPERTY_FETCH,
+        /** copying or linking the content of a file */
+        CONTENT_COPY,
+        /** writing the metadata XML of a node */
+        XML_WRITE,
+        /** recording an exported node in the completion journal */
+        JOURNAL;
+
+        public String getName()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final AtomicLong contentBytes = new AtomicLong();
+
+    /** metrics of all the exports, null for those */
+    private final ExportMetrics parent;
+
+    public ExportMetrics()
+    {
+        this(null);
+    }
+
+    /**
+     * @param parent metrics the figures are added to as well, may be null
+     */
+    public ExportMetrics(ExportMetrics parent)
+    {
+        this.parent = parent;
+        for (int i = 0; i < histograms.length; i++)
+        {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param stage
+     * @param nanos time spent in the stage, from {@link System#nanoTime()}
+     */
+    public void record(Stage stage, long nanos)
+    {
+        histograms[stage.ordinal()].record(nanos);
+        if (parent != null)
+        {
+            parent.record(stage, nanos);
+        }
+    }
+
+    /**
+     * @param bytes size of a content exported
+     */
+    public void addContentBytes(long bytes)
+    {
+        contentBytes.addAndGet(bytes);
+        if (parent != null)
+        {
+            parent.addContentBytes(bytes);
+        }
+    }
+
+    public List<StageTiming> getStages()
+    {
+        List<StageTiming> stages = new ArrayList<StageTiming>(histograms.length);
+        for (Stage stage : Stage.values())
+        {
+            stages.add(StageTiming.of(stage.getName(), histograms[stage.ordinal()]));
+        }
+        return stages;
+    }
+
+    public long getContentBytes()
+    {
+        return contentBytes.get();
+    }
+
+    public void reset()
+    {
+        for (LatencyHistogram histogram : histograms)
+        {
+            histogram.reset();
+        }
+        contentBytes.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("content bytes: " + getContentBytes() + "\n");
+        for (StageTiming stage : getStages())
+        {
+            sb.append("   ").append(stage).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.util.List;
+
+/**
+ * Where the time of the exports goes, published through JMX by the export webscript
+ */
+public interface ExportMetricsMXBean
+{
+    /**
+     * @return timings of every stage of the export
+     */
+    public List<StageTiming> getStages();
+
+    /**
+     * @return bytes of content exported
+     */
+    public long getContentBytes();
+
+    /**
+     * Start counting again from zero
+     */
+    public void reset();
+}
@@ -0,0 +1,177 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.utils.ExportUtils;
+
+/**
+ * The share of an export made by one partition, so a huge export can be split across several cluster 
+ * nodes or several webscript calls. A partition either keeps the nodes whose <code>sys:node-dbid</code> 
+ * is in <code>[lo, hi)</code>, or the nodes whose hashed dbid falls in bucket <code>k</code> of <code>N</code>. 
+ * Buckets need no knowledge of the dbid distribution, ranges let a search skip the other partitions.
+ */
+public class ExportPartition
+{
+    /** lowest dbid of a range partition, included */
+    private final long lo;
+
+    /** highest dbid of a range partition, excluded */
+    private final long hi;
+
+    /** bucket of a hash partition, -1 for a range partition */
+    private final int bucket;
+
+    /** number of buckets of a hash partition, 0 for a range partition */
+    private final int buckets;
+
+    private ExportPartition(long lo, long hi, int bucket, int buckets)
+    {
+        this.lo = lo;
+        this.hi = hi;
+        this.bucket = bucket;
+        this.buckets = buckets;
+    }
+
+    /**
+     * @param lo lowest dbid, included
+     * @param hi highest dbid, excluded
+     * @return {@link ExportPartition}
+     */
+    public static ExportPartition range(long lo, long hi)
+    {
+        if (lo < 0 || hi <= lo)
+        {
+            throw new IllegalArgumentException("Invalid dbid range [" + lo + ", " + hi + ")");
+        }
+        return new ExportPartition(lo, hi, -1, 0);
+    }
+
+    /**
+     * @param bucket from 0 to buckets - 1
+     * @param buckets
+     * @return {@link ExportPartition}
+     */
+    public static ExportPartition bucket(int bucket, int buckets)
+    {
+        if (buckets < 1 || bucket < 0 || bucket >= buckets)
+        {
+            throw new IllegalArgumentException("Invalid hash bucket " + bucket + " of " + buckets);
+        }
+        return new ExportPartition(0, Long.MAX_VALUE, bucket, buckets);
+    }
+
+    /**
+     * Parse a partition given to the export, <code>lo-hi</code> for a dbid range where hi may be left 
+     * out for no upper bound, or <code>k/N</code> for hash bucket k of N
+     * 
+     * @param value may be null or empty
+     * @return null if no partition is given
+     * @throws IllegalArgumentException if the value is not a partition
+     */
+    public static ExportPartition parse(String value)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return null;
+        }
+        value = value.trim();
+        try
+        {
+            int slash = value.indexOf('/');
+            if (slash > 0)
+            {
+                return bucket(Integer.parseInt(value.substring(0, slash).trim()), Integer.parseInt(value.substring(slash + 1).trim()));
+            }
+            int dash = value.indexOf('-');
+            if (dash > 0)
+            {
+                String hiValue = value.substring(dash + 1).trim();
+                return range(Long.parseLong(value.substring(0, dash).trim()), hiValue.isEmpty() ? Long.MAX_VALUE : Long.parseLong(hiValue));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid partition '" + value + "', expected lo-hi or k/N");
+    }
+
+    /**
+     * @param dbid <code>sys:node-dbid</code> of a node
+     * @return true if the node is exported by this partition
+     */
+    public boolean contains(long dbid)
+    {
+        if (isHashed())
+        {
+            // mixed so the dbids spread evenly over the buckets whatever their spacing, a plain modulo is skewed
+            // when nodes are created in groups whose dbids share a step
+            return (int) ((ExportUtils.mix(dbid) & Long.MAX_VALUE) % buckets) == bucket;
+        }
+        return dbid >= lo && dbid < hi;
+    }
+
+    /**
+     * @return true for a hash bucket, false for a dbid range
+     */
+    public boolean isHashed()
+    {
+        return buckets > 0;
+    }
+
+    public long getLo()
+    {
+        return lo;
+    }
+
+    public long getHi()
+    {
+        return hi;
+    }
+
+    public int getBucket()
+    {
+        return bucket;
+    }
+
+    public int getBuckets()
+    {
+        return buckets;
+    }
+
+    /**
+     * @return identifier of the partition, appended to the names of its cache and complete files
+     */
+    public String getId()
+    {
+        if (isHashed())
+        {
+            return "bucket-" + bucket + "-of-" + buckets;
+        }
+        return "dbid-" + lo + "-" + (hi == Long.MAX_VALUE ? "max" : String.valueOf(hi));
+    }
+
+    @Override
+    public String toString()
+    {
+        if (isHashed())
+        {
+            return "hash bucket " + bucket + " of " + buckets;
+        }
+        return "dbid range [" + lo + ", " + (hi == Long.MAX_VALUE ? "max" : String.valueOf(hi)) + ")";
+    }
+}
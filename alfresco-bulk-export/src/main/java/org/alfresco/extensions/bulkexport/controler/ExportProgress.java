@@ -0,0 +1,153 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+/**
+ * Progress of an export at one point in time, built by {@link Engine#getProgress()} from the counters 
+ * the engine updates as it goes. The getters are read by the status templates.
+ */
+public class ExportProgress
+{
+    public enum Phase
+    {
+        /** the export has not started yet */
+        PENDING,
+        /** nodes are still being discovered, they may already be exported at the same time */
+        DISCOVERY,
+        /** all the nodes are known and being exported */
+        EXPORT,
+        FINISHED
+    }
+
+    private final Phase phase;
+    private final int total;
+    private final int remaining;
+    private final int previouslyExported;
+    private final int exported;
+    private final long bytes;
+    private final long elapsed;
+    private final long exportElapsed;
+
+    /**
+     * @param phase
+     * @param total nodes to export, nodes exported by previous runs included
+     * @param remaining nodes known and not exported yet
+     * @param previouslyExported nodes exported by previous runs of a node cache export
+     * @param exported nodes exported by this run
+     * @param bytes content bytes written by this run
+     * @param elapsed milliseconds since the export started
+     * @param exportElapsed milliseconds since the first node was exported, 0 before
+     */
+    public ExportProgress(Phase phase, int total, int remaining, int previouslyExported, int exported, long bytes, long elapsed, long exportElapsed)
+    {
+        this.phase = phase;
+        this.total = total;
+        this.remaining = remaining;
+        this.previouslyExported = previouslyExported;
+        this.exported = exported;
+        this.bytes = bytes;
+        this.elapsed = elapsed;
+        this.exportElapsed = exportElapsed;
+    }
+
+    public Phase getPhase()
+    {
+        return phase;
+    }
+
+    public int getTotal()
+    {
+        return total;
+    }
+
+    public int getRemaining()
+    {
+        return Math.max(0, remaining);
+    }
+
+    /**
+     * @return nodes exported by this run and by previous runs
+     */
+    public int getDone()
+    {
+        return previouslyExported + exported;
+    }
+
+    public int getPreviouslyExported()
+    {
+        return previouslyExported;
+    }
+
+    public int getExported()
+    {
+        return exported;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return milliseconds since the export started
+     */
+    public long getElapsed()
+    {
+        return elapsed;
+    }
+
+    /**
+     * @return nodes exported per second by this run
+     */
+    public double getNodesPerSecond()
+    {
+        return exportElapsed > 0 ? exported * 1000d / exportElapsed : 0;
+    }
+
+    /**
+     * @return content bytes written per second by this run
+     */
+    public double getBytesPerSecond()
+    {
+        return exportElapsed > 0 ? bytes * 1000d / exportElapsed : 0;
+    }
+
+    /**
+     * @return estimated seconds left, -1 while the nodes are still being discovered or nothing was exported yet
+     */
+    public long getEta()
+    {
+        if (phase == Phase.FINISHED)
+        {
+            return 0;
+        }
+        double rate = getNodesPerSecond();
+        if (phase != Phase.EXPORT || rate <= 0)
+        {
+            return -1;
+        }
+        return (long) Math.ceil(getRemaining() / rate);
+    }
+
+    @Override
+    public String toString()
+    {
+        return phase + " " + getDone() + "/" + total + " nodes, " + getRemaining() + " remaining, " 
+                + String.format("%.1f", getNodesPerSecond()) + " nodes/s, " + String.format("%.0f", getBytesPerSecond()) + " bytes/s"
+                + (getEta() >= 0 ? ", eta " + getEta() + " s" : "");
+    }
+}
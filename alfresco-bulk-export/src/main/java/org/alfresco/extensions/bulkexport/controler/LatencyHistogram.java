@@ -0,0 +1,100 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations. Bucket <code>b</code> counts the durations from 
+ * <code>2^(b-1)</code> to <code>2^b - 1</code> nanoseconds, so a percentile is known within a factor 
+ * of two, which is enough to tell where the time of an export goes.
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+        {
+            current = max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getTotalNanos()
+    {
+        return total.get();
+    }
+
+    public long getMaxNanos()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param fraction from 0 to 1, 0.99 for the 99th percentile
+     * @return upper bound of the bucket holding the percentile, in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double fraction)
+    {
+        long target = (long) Math.ceil(fraction * count.get());
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++)
+        {
+            seen += buckets.get(b);
+            if (seen >= target && seen > 0)
+            {
+                long upper = (b == 0) ? 0 : (1L << b) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset()
+    {
+        for (int b = 0; b < BUCKETS; b++)
+        {
+            buckets.set(b, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+
+/**
+ * Compact binary file holding the list of nodes to export.
+ * 
+ * Layout, all numbers big endian:
+ * <pre>
+ *   header   magic (int) | version (short) | reserved (short) | record count (long) | CRC32 of the records (long) | table offset (long)
+ *   records  store index (short) | uuid most significant bits (long) | uuid least significant bits (long)
+ *   tables   store count (int) | store refs (UTF) | id count (int) | ids (UTF)
+ * </pre>
+ * Records have a fixed width so the file can be read incrementally and a node addressed by its position. 
+ * The store of a node is an index in the store table. A node id that is not a UUID is kept in the id table, 
+ * its record then has the {@link #ID_TABLE_FLAG} set on the store index and the table index in the first long.
+ * The tables are written after the records so the file can be written in a single pass while discovering.
+ */
+public class NodeCacheFile
+{
+    public static final int MAGIC = 0x42455843; // "BEXC"
+    public static final short VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8 + 8;
+    public static final int RECORD_SIZE = 2 + 8 + 8;
+
+    private static final int ID_TABLE_FLAG = 0x8000;
+
+    /** number of records read from disk at once */
+    private static final int RECORDS_PER_READ = 4096;
+
+    /**
+     * Tell whether a file is in this format, as opposed to the java serialized list of earlier versions
+     * 
+     * @param file
+     * @return {@link Boolean}
+     * @throws IOException
+     */
+    public static boolean isNodeCacheFile(File file) throws IOException
+    {
+        if (file.length() < HEADER_SIZE)
+        {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            return raf.readInt() == MAGIC;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Streams nodes to a new cache file. The file is written next to its final name and renamed on 
+     * {@link #close()}, so an interrupted discovery never leaves a truncated cache behind.
+     */
+    public static class Writer implements NodeVisitor, Closeable
+    {
+        private final File file;
+        private final File tempFile;
+        private final FileOutputStream fos;
+        private final DataOutputStream out;
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        private final Map<String, Integer> stores = new HashMap<String, Integer>();
+        private final List<String> storeTable = new ArrayList<String>();
+        private final List<String> idTable = new ArrayList<String>();
+        private long count = 0;
+        private boolean closed = false;
+
+        public Writer(File file) throws IOException
+        {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.fos = new FileOutputStream(tempFile);
+            this.out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            // header is rewritten on close once the count and checksum are known
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        public boolean visit(NodeRef nodeRef) throws IOException
+        {
+            write(nodeRef);
+            return true;
+        }
+
+        public void write(NodeRef nodeRef) throws IOException
+        {
+            String store = nodeRef.getStoreRef().toString();
+            Integer storeIndex = stores.get(store);
+            if (storeIndex == null)
+            {
+                storeIndex = storeTable.size();
+                if (storeIndex >= ID_TABLE_FLAG)
+                {
+                    throw new IOException("Too many stores in node cache: " + storeIndex);
+                }
+                stores.put(store, storeIndex);
+                storeTable.add(store);
+            }
+
+            record.clear();
+            UUID uuid = parseUuid(nodeRef.getId());
+            if (uuid != null)
+            {
+                record.putShort((short) storeIndex.intValue());
+                record.putLong(uuid.getMostSignificantBits());
+                record.putLong(uuid.getLeastSignificantBits());
+            }
+            else
+            {
+                record.putShort((short) (storeIndex | ID_TABLE_FLAG));
+                record.putLong(idTable.size());
+                record.putLong(0L);
+                idTable.add(nodeRef.getId());
+            }
+            crc.update(record.array(), 0, RECORD_SIZE);
+            out.write(record.array(), 0, RECORD_SIZE);
+            count++;
+        }
+
+        /**
+         * @return number of nodes written so far
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                long tableOffset = HEADER_SIZE + count * RECORD_SIZE;
+                out.writeInt(storeTable.size());
+                for (String store : storeTable)
+                {
+                    out.writeUTF(store);
+                }
+                out.writeInt(idTable.size());
+                for (String id : idTable)
+                {
+                    out.writeUTF(id);
+                }
+                out.flush();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putShort(VERSION);
+                header.putShort((short) 0);
+                header.putLong(count);
+                header.putLong(crc.getValue());
+                header.putLong(tableOffset);
+                header.flip();
+                FileChannel channel = fos.getChannel();
+                while (header.hasRemaining())
+                {
+                    channel.write(header, header.position());
+                }
+                channel.force(false);
+            }
+            finally
+            {
+                out.close();
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Discard the file being written, the previous cache file if any is left untouched
+         */
+        public void abort() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            out.close();
+            Files.deleteIfExists(tempFile.toPath());
+        }
+
+        private static UUID parseUuid(String id)
+        {
+            if (id.length() != 36)
+            {
+                return null;
+            }
+            try
+            {
+                UUID uuid = UUID.fromString(id);
+                // only keep ids that come back unchanged, the lower case canonical form
+                return uuid.toString().equals(id) ? uuid : null;
+            }
+            catch (IllegalArgumentException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads a cache file without loading the records in memory, only the store and id tables are kept
+     */
+    public static class Reader implements Closeable
+    {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long count;
+        private final long checksum;
+        private final StoreRef[] stores;
+        private final String[] ids;
+
+        public Reader(File file) throws IOException
+        {
+            this.raf = new RandomAccessFile(file, "r");
+            this.channel = raf.getChannel();
+            try
+            {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC)
+                {
+                    throw new IOException("Not a node cache file: " + file.getPath());
+                }
+                short version = header.getShort();
+                if (version != VERSION)
+                {
+                    throw new IOException("Unsupported node cache version " + version + ": " + file.getPath());
+                }
+                header.getShort();
+                this.count = header.getLong();
+                this.checksum = header.getLong();
+                long tableOffset = header.getLong();
+                if (tableOffset != HEADER_SIZE + count * RECORD_SIZE || tableOffset > channel.size())
+                {
+                    throw new IOException("Truncated node cache file: " + file.getPath());
+                }
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(tableOffset))));
+                stores = new StoreRef[in.readInt()];
+                for (int i = 0; i < stores.length; i++)
+                {
+                    stores[i] = new StoreRef(in.readUTF());
+                }
+                ids = new String[in.readInt()];
+                for (int i = 0; i < ids.length; i++)
+                {
+                    ids[i] = in.readUTF();
+                }
+            }
+            catch (IOException e)
+            {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return CRC32 of the records, from the header
+         */
+        public long getChecksum()
+        {
+            return checksum;
+        }
+
+        /**
+         * @return number of nodes in the cache
+         */
+        public long size()
+        {
+            return count;
+        }
+
+        /**
+         * Compare the records with the checksum in the header, reading the file once
+         * 
+         * @throws IOException if the records do not match the checksum
+         */
+        public void verify() throws IOException
+        {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_READ * RECORD_SIZE);
+            long position = HEADER_SIZE;
+            long end = HEADER_SIZE + count * RECORD_SIZE;
+            while (position < end)
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                readFully(buffer, position);
+                crc.update(buffer.array(), 0, buffer.limit());
+                position += buffer.limit();
+            }
+            if (crc.getValue() != checksum)
+            {
+                throw new IOException("Node cache checksum mismatch");
+            }
+        }
+
+        /**
+         * Read the node at a position
+         * 
+         * @param position 0 based index of the record
+         * @return {@link NodeRef}
+         * @throws IOException
+         */
+        public NodeRef get(long position) throws IOException
+        {
+            if (position < 0 || position >= count)
+            {
+                throw new IndexOutOfBoundsException("position " + position + " of " + count);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            readFully(buffer, HEADER_SIZE + position * RECORD_SIZE);
+            buffer.flip();
+            return decode(buffer);
+        }
+
+        /**
+         * @return a cursor over all the nodes, in the order they were written
+         */
+        public Cursor iterator()
+        {
+            return new Cursor();
+        }
+
+        public void close() throws IOException
+        {
+            raf.close();
+        }
+
+        private NodeRef decode(ByteBuffer buffer)
+        {
+            int storeIndex = buffer.getShort() & 0xFFFF;
+            long msb = buffer.getLong();
+            long lsb = buffer.getLong();
+            if ((storeIndex & ID_TABLE_FLAG) != 0)
+            {
+                return new NodeRef(stores[storeIndex & ~ID_TABLE_FLAG], ids[(int) msb]);
+            }
+            return new NodeRef(stores[storeIndex], new UUID(msb, lsb).toString());
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                {
+                    throw new IOException("Unexpected end of node cache file");
+                }
+                position += read;
+            }
+        }
+
+        /**
+         * Iterates the records a block at a time. {@link #position()} gives the position of the last node returned.
+         */
+        public class Cursor implements Iterator<NodeRef>, Closeable
+        {
+            private final ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_READ * RECORD_SIZE);
+            private long next = 0;
+
+            private Cursor()
+            {
+                buffer.limit(0);
+            }
+
+            public boolean hasNext()
+            {
+                return next < count;
+            }
+
+            public NodeRef next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                if (!buffer.hasRemaining())
+                {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(RECORDS_PER_READ, count - next) * RECORD_SIZE);
+                    try
+                    {
+                        readFully(buffer, HEADER_SIZE + next * RECORD_SIZE);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new IllegalStateException("Could not read node cache at position " + next, e);
+                    }
+                    buffer.flip();
+                }
+                next++;
+                return decode(buffer);
+            }
+
+            /**
+             * @return position of the last node returned by {@link #next()}, -1 before the first one
+             */
+            public long position()
+            {
+                return next - 1;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() throws IOException
+            {
+                Reader.this.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Bounded hand-over between the thread discovering nodes and the thread exporting them.
+ * 
+ * The discovery side feeds nodes through {@link #visit(NodeRef)}, which blocks while the queue is full, 
+ * and calls {@link #finish(Throwable)} when it is done. The export side drains the queue as an 
+ * {@link Iterator}, which ends once discovery has finished and every queued node has been taken.
+ */
+public class NodeQueue implements NodeVisitor, Iterator<NodeRef>
+{
+    /** marks the end of the discovery, compared by identity */
+    private static final NodeRef END_OF_NODES = new NodeRef("workspace://SpacesStore/end-of-nodes");
+
+    private final BlockingQueue<NodeRef> queue;
+
+    /** nodes queued but not yet taken by the export side */
+    private final AtomicInteger availableNodes;
+
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+    private NodeRef next = null;
+
+    /**
+     * @param capacity maximum number of nodes waiting to be exported
+     * @param availableNodes counter incremented for every node queued
+     */
+    public NodeQueue(int capacity, AtomicInteger availableNodes)
+    {
+        this.queue = new ArrayBlockingQueue<NodeRef>(capacity);
+        this.availableNodes = availableNodes;
+    }
+
+    /**
+     * Queue a node, waiting while the queue is full
+     * 
+     * @return false if the export side has closed the queue
+     */
+    public boolean visit(NodeRef nodeRef) throws InterruptedException
+    {
+        availableNodes.incrementAndGet();
+        while (!closed)
+        {
+            if (queue.offer(nodeRef, 1, TimeUnit.SECONDS))
+            {
+                return true;
+            }
+        }
+        availableNodes.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Signal the end of the discovery
+     * 
+     * @param failure the error that stopped the discovery, null if it completed
+     */
+    public void finish(Throwable failure)
+    {
+        this.failure = failure;
+        try
+        {
+            while (!closed && !queue.offer(END_OF_NODES, 1, TimeUnit.SECONDS))
+            {
+                // export side is still busy, keep waiting for room
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    /**
+     * Stop accepting nodes, used by the export side when it gives up before the discovery is finished
+     */
+    public void close()
+    {
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * @return the error that stopped the discovery, null if none
+     */
+    public Throwable getFailure()
+    {
+        return failure;
+    }
+
+    public boolean hasNext()
+    {
+        if (next == null)
+        {
+            try
+            {
+                next = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                close();
+                next = END_OF_NODES;
+            }
+        }
+        return next != END_OF_NODES;
+    }
+
+    public NodeRef next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        NodeRef nodeRef = next;
+        next = null;
+        return nodeRef;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
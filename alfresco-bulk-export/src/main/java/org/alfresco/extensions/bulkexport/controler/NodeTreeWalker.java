@@ -0,0 +1,125 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Walks a folder tree depth first with an explicit stack, so deep hierarchies cannot overflow the 
+ * thread stack. Every folder costs two type filtered child association fetches, one for the documents 
+ * and one for the sub folders, and nothing more is looked up for its children. Folders are always 
+ * visited before their children. The children of every folder are read in a read only transaction of its own, 
+ * so a long walk never holds one transaction open, and visited once it has returned, so a retried read 
+ * never visits a node twice.
+ */
+public class NodeTreeWalker
+{
+    Log log = LogFactory.getLog(NodeTreeWalker.class);
+
+    /** Data Access Object */
+    private AlfrescoExportDao dao;
+
+    /** checked for cancellation between siblings, opens the transactions */
+    private Engine engine;
+
+    /**
+     * @param dao Data Access Object
+     * @param engine running export, used to check for cancellation
+     */
+    public NodeTreeWalker(AlfrescoExportDao dao, Engine engine)
+    {
+        this.dao = dao;
+        this.engine = engine;
+    }
+
+    /**
+     * Walk the tree under the root node, the root included
+     * 
+     * @param rootNode
+     * @param visitor
+     * @return false if the walk was cancelled or stopped by the visitor
+     * @throws Exception
+     */
+    public boolean walk(final NodeRef rootNode, final NodeVisitor visitor) throws Exception
+    {
+        Boolean rootFolder = engine.inReadOnlyTransaction(new RetryingTransactionCallback<Boolean>() {
+            public Boolean execute() throws Throwable
+            {
+                if (dao.isNodeIgnored(rootNode.toString()))
+                {
+                    return null;
+                }
+                return dao.isFolder(rootNode);
+            }
+        });
+        if (rootFolder == null)
+        {
+            return true;
+        }
+        if (!rootFolder)
+        {
+            return visitor.visit(rootNode);
+        }
+
+        Deque<NodeRef> folders = new ArrayDeque<NodeRef>();
+        folders.push(rootNode);
+        while (!folders.isEmpty())
+        {
+            if (engine.isCancelExport())
+            {
+                return false;
+            }
+            final NodeRef folder = folders.pop();
+            if (!visitor.visit(folder))
+            {
+                return false;
+            }
+            List<List<NodeRef>> children = engine.inReadOnlyTransaction(new RetryingTransactionCallback<List<List<NodeRef>>>() {
+                public List<List<NodeRef>> execute() throws Throwable
+                {
+                    return Arrays.asList(dao.getFileChildren(folder), dao.getFolderChildren(folder));
+                }
+            });
+            for (NodeRef file : children.get(0))
+            {
+                if (engine.isCancelExport() || !visitor.visit(file))
+                {
+                    return false;
+                }
+            }
+
+            List<NodeRef> subFolders = children.get(1);
+
+            // pushed in reverse so sub folders are walked in the order they are returned
+            for (int i = subFolders.size() - 1; i >= 0; i--)
+            {
+                folders.push(subFolders.get(i));
+            }
+            log.debug("walk folder " + folder + " pending folders: " + folders.size());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Receives the nodes found while discovering what to export
+ */
+public interface NodeVisitor
+{
+    /**
+     * Called once for every node to export, folders before their children
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return false to stop the discovery
+     * @throws Exception
+     */
+    public boolean visit(NodeRef nodeRef) throws Exception;
+}
@@ -0,0 +1,164 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Layout of a partitioned export, the <code>{id}.partitions</code> properties file in the export folder. 
+ * Every partition records its bounds, its cache and complete files, its state and its counts, so the 
+ * parts can be checked and merged once all of them are completed. 
+ * <pre>
+ *   scheme=bucket                  bucket or range, the same for every partition
+ *   buckets=8                      number of buckets of a hash partitioned export
+ *   bucket-3-of-8.state=completed  running, cached, completed, cancelled or failed
+ *   bucket-3-of-8.nodes=1200       nodes found in the partition
+ *   bucket-3-of-8.exported=1200    nodes exported by the last run
+ * </pre>
+ * The partitions may run in different JVMs writing to a shared export folder, the file is locked while 
+ * it is read and rewritten.
+ */
+public class PartitionManifest
+{
+    private final File file;
+
+    /**
+     * @param basePath export folder
+     * @param exportId identifier of the whole export, the root node id or the date range
+     */
+    public PartitionManifest(String basePath, String exportId)
+    {
+        this.file = new File(basePath, exportId + ".partitions");
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Record the state of a partition
+     * 
+     * @param partition
+     * @param partitionFileId identifier of the cache and complete files of the partition
+     * @param state
+     * @param nodes nodes found in the partition, -1 if not known yet
+     * @param exported nodes exported, -1 if not known yet
+     * @throws IOException
+     * @throws IllegalStateException if the export was already partitioned another way
+     */
+    public void record(ExportPartition partition, String partitionFileId, String state, int nodes, int exported) throws IOException
+    {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            FileLock lock = channel.lock();
+            try
+            {
+                Properties manifest = read(channel);
+                checkLayout(manifest, partition);
+
+                String id = partition.getId();
+                manifest.setProperty("scheme", partition.isHashed() ? "bucket" : "range");
+                if (partition.isHashed())
+                {
+                    manifest.setProperty("buckets", String.valueOf(partition.getBuckets()));
+                    manifest.setProperty(id + ".bucket", String.valueOf(partition.getBucket()));
+                }
+                else
+                {
+                    manifest.setProperty(id + ".lo", String.valueOf(partition.getLo()));
+                    manifest.setProperty(id + ".hi", partition.getHi() == Long.MAX_VALUE ? "max" : String.valueOf(partition.getHi()));
+                }
+                manifest.setProperty(id + ".cache", partitionFileId + ".cache");
+                manifest.setProperty(id + ".complete", partitionFileId + ".complete");
+                manifest.setProperty(id + ".state", state);
+                if (nodes >= 0)
+                {
+                    manifest.setProperty(id + ".nodes", String.valueOf(nodes));
+                }
+                if (exported >= 0)
+                {
+                    manifest.setProperty(id + ".exported", String.valueOf(exported));
+                }
+                manifest.setProperty(id + ".updated", String.valueOf(System.currentTimeMillis()));
+                write(channel, manifest);
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void checkLayout(Properties manifest, ExportPartition partition)
+    {
+        String scheme = manifest.getProperty("scheme");
+        if (scheme == null)
+        {
+            return;
+        }
+        if (!scheme.equals(partition.isHashed() ? "bucket" : "range"))
+        {
+            throw new IllegalStateException("Export " + file.getName() + " is partitioned by " + scheme + ", not by " + partition);
+        }
+        if (partition.isHashed() && !String.valueOf(partition.getBuckets()).equals(manifest.getProperty("buckets")))
+        {
+            throw new IllegalStateException("Export " + file.getName() + " has " + manifest.getProperty("buckets") + " buckets, not " + partition.getBuckets());
+        }
+    }
+
+    private static Properties read(FileChannel channel) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+        {
+            // read the whole manifest
+        }
+        Properties manifest = new Properties();
+        manifest.load(new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+        return manifest;
+    }
+
+    private static void write(FileChannel channel, Properties manifest) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.store(out, "Bulk export partitions");
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        channel.truncate(0);
+        channel.position(0);
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+}
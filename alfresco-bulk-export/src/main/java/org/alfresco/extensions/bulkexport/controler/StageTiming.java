@@ -0,0 +1,108 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Timings of one stage of the export, as published by {@link ExportMetricsMXBean}
+ */
+public class StageTiming
+{
+    private final String name;
+    private final long count;
+    private final long totalMillis;
+    private final long meanMicros;
+    private final long p50Micros;
+    private final long p90Micros;
+    private final long p99Micros;
+    private final long maxMicros;
+
+    @ConstructorProperties({ "name", "count", "totalMillis", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros" })
+    public StageTiming(String name, long count, long totalMillis, long meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros)
+    {
+        this.name = name;
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    /**
+     * @param name
+     * @param histogram durations of the stage
+     * @return {@link StageTiming}
+     */
+    public static StageTiming of(String name, LatencyHistogram histogram)
+    {
+        long count = histogram.getCount();
+        long total = histogram.getTotalNanos();
+        return new StageTiming(name, count, total / 1000000, count > 0 ? total / count / 1000 : 0,
+                histogram.getPercentileNanos(0.5) / 1000, histogram.getPercentileNanos(0.9) / 1000, 
+                histogram.getPercentileNanos(0.99) / 1000, histogram.getMaxNanos() / 1000);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public long getTotalMillis()
+    {
+        return totalMillis;
+    }
+
+    public long getMeanMicros()
+    {
+        return meanMicros;
+    }
+
+    public long getP50Micros()
+    {
+        return p50Micros;
+    }
+
+    public long getP90Micros()
+    {
+        return p90Micros;
+    }
+
+    public long getP99Micros()
+    {
+        return p99Micros;
+    }
+
+    public long getMaxMicros()
+    {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + ": " + count + " in " + totalMillis + " ms, mean " + meanMicros + " us, p50 " + p50Micros 
+                + " us, p90 " + p90Micros + " us, p99 " + p99Micros + " us, max " + maxMicros + " us";
+    }
+}
@@ -16,13 +16,15 @@
  */
 package org.alfresco.extensions.bulkexport.dao;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.alfresco.extensions.bulkexport.controler.Engine;
+import org.alfresco.extensions.bulkexport.model.ExportSink;
+import org.alfresco.extensions.bulkexport.utils.QueryLanguage;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
 
@@ -69,6 +71,28 @@ public interface AlfrescoExportDao
     public List<NodeRef> getChildren(NodeRef nodeRef) throws Exception;
 
     
+    /**
+     * Method to get the folder children of a node reference, ignored types excluded.
+     * Uses a single type filtered child association fetch.
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link List}
+     * @throws Exception
+     */
+    public List<NodeRef> getFolderChildren(NodeRef nodeRef) throws Exception;
+
+    
+    /**
+     * Method to get the document children of a node reference, ignored types excluded.
+     * Uses a single type filtered child association fetch.
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link List}
+     * @throws Exception
+     */
+    public List<NodeRef> getFileChildren(NodeRef nodeRef) throws Exception;
+
+    
     /**
      * Method to get the node path reference 
      * 
@@ -78,15 +102,37 @@ public interface AlfrescoExportDao
      */
     public String getPath(NodeRef nodeRef) throws Exception;
 
+
+    /**
+     * Method to get the path of a node from its snapshot, without reading the node again
+     * 
+     * @param snapshot the node read by {@link #getNodeSnapshots(List)}
+     * @return {@link String}
+     * @throws Exception
+     */
+    public String getPath(NodeSnapshot snapshot) throws Exception;
+
+    
+    /**
+     * Method to read the type, aspects, properties, name and parent of a page of nodes at once. 
+     * The nodes are loaded together, instead of one call to the repository for each of these values.
+     * 
+     * @param nodeRefs the nodes to read
+     * @return {@link List} of snapshots in the order of the given nodes
+     * @throws Exception
+     */
+    public List<NodeSnapshot> getNodeSnapshots(List<NodeRef> nodeRefs) throws Exception;
+
     
     /**
-     * Method to get node content
+     * Method to stream node content, the content is copied through a bounded buffer and never held in memory
      * 
      * @param nodeRef Alfresco Node Reference
-     * @return {@link ByteArrayOutputStream}
+     * @param out where the content is written, it is not closed
+     * @return false if the node has no content
      * @throws Exception
      */
-    public ByteArrayOutputStream getContent(NodeRef nodeRef) throws Exception;
+    public boolean getContent(NodeRef nodeRef, OutputStream out) throws Exception;
 
     /**
      * Method to store node contents directly to File.
@@ -94,10 +140,43 @@ public interface AlfrescoExportDao
      * 
      * @param nodeRef Alfresco Node Reference
      * @param outputFileName filename to use when storing data
-     * @return {@link ByteArrayOutputStream}
+     * @return number of bytes written, or of the content linked, -1 if the node has no content
      * @throws Exception
      */
-    public boolean getContentAndStoreInFile(NodeRef nodeRef, String outputFileName) throws Exception; 
+    public long getContentAndStoreInFile(NodeRef nodeRef, String outputFileName) throws Exception; 
+    
+    /**
+     * Method to stream node content to a sink that is not the local file system, eg. an archive or an object store. 
+     * The content is streamed in one pass and never held in memory as a whole.
+     * 
+     * A content that can not be read at all is written as an empty file, a content that fails part way 
+     * fails the file instead of ending it as if it were complete.
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @param sink
+     * @param outputFileName full path the file has in a file system export
+     * @return number of bytes written, -1 if the node has no content
+     * @throws Exception
+     */
+    public long storeContentInSink(NodeRef nodeRef, ExportSink sink, String outputFileName) throws Exception; 
+    
+    /**
+     * Method to store a content already exported to another file, the file is hard linked to it or copied 
+     * when the file system can not link them.
+     * 
+     * @param exportedFileName file where the same content was exported before
+     * @param outputFileName filename to use when storing data
+     * @return false if the exported file does not exist anymore
+     * @throws Exception
+     */
+    public boolean storeExportedContentInFile(String exportedFileName, String outputFileName) throws Exception; 
+    
+    /**
+     * Counters of how the content was copied by {@link #getContentAndStoreInFile(NodeRef, String)}
+     * 
+     * @return {@link ContentTransferStats}
+     */
+    public ContentTransferStats getContentTransferStats();
     
     /**
      * Method to get specific property
@@ -110,6 +189,27 @@ public interface AlfrescoExportDao
     public String getProperty(NodeRef nodeRef, QName propertyQName) throws Exception;
     
     
+    /**
+     * Method to get the url of the node content in the content store. Content is never changed in place, 
+     * two nodes with the same content url have the same content.
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link String}, null if the node has no content
+     * @throws Exception
+     */
+    public String getContentUrl(NodeRef nodeRef) throws Exception;
+    
+    
+    /**
+     * Method to get the database id of a node, its <code>sys:node-dbid</code>
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link Long}
+     * @throws Exception
+     */
+    public long getNodeDbid(NodeRef nodeRef) throws Exception;
+    
+    
     /**
      * Method to get node type
      * 
@@ -168,7 +268,16 @@ public interface AlfrescoExportDao
      */
     public Map<String,NodeRefRevision> getNodeRefHistory(String nodeRef) throws Exception;
     
-    public List<NodeRef> getAllNodesForQuery(String query, Engine engine) throws IOException;
+    /**
+     * Method to search nodes, the results are searched page by page as the iterator is consumed
+     * 
+     * @param query
+     * @param language language of the query
+     * @param pageSize number of results searched at once
+     * @param engine the search stops when its export is cancelled
+     * @return {@link Iterator}
+     */
+    public Iterator<NodeRef> getAllNodesForQuery(String query, QueryLanguage language, int pageSize, Engine engine);
     public String getPrefixPath(NodeRef nodeRef) throws Exception;
 }
 
@@ -16,44 +16,60 @@
  */
 package org.alfresco.extensions.bulkexport.dao;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.alfresco.extensions.bulkexport.controler.Engine;
+import org.alfresco.extensions.bulkexport.model.ExportSink;
 import org.alfresco.extensions.bulkexport.utils.ExportUtils;
+import org.alfresco.extensions.bulkexport.utils.QueryLanguage;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.action.ActionModel;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.domain.node.NodeDAO;
 //SA 9/22/2022 PublishingModel not found in alfresco 7.2, comments it out.
 ////It throws A NoClassDefinitionFound at run time when the export module is executed.
 //
 //import org.alfresco.repo.publishing.PublishingModel;
 import org.alfresco.repo.version.VersionModel;
 import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.Path;
+import org.alfresco.service.cmr.security.AccessStatus;
 import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.cmr.version.Version;
 import org.alfresco.service.cmr.version.VersionHistory;
@@ -89,6 +105,26 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
     private final ContentService contentService;
     private final PermissionService permissionService;
     private final VersionService versionService;
+    private final DictionaryService dictionaryService;
+    
+    /** used to load a page of nodes in bulk, may be null */
+    private final NodeDAO nodeDAO;
+    
+    /** if true content in a file content store is hard linked instead of copied */
+    private boolean linkContent = false;
+    
+    private final ContentTransferStats contentTransferStats = new ContentTransferStats();
+    
+    /** size of the buffer content is streamed through */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
+    /** one copy buffer per exporting thread, reused for every file */
+    private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
         
     private QName ignoreAspectQname[] = 
     {
@@ -136,6 +172,31 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
             //,PublishingModel.TYPE_PUBLISHING_QUEUE
     };
     
+    /** folder and document types that are not ignored, resolved once from the dictionary */
+    private volatile Set<QName> folderTypes = null;
+    private volatile Set<QName> fileTypes = null;
+    
+    /** maximum number of folder paths kept by {@link #getPath(NodeRef)} */
+    private static final int PATH_CACHE_SIZE = 10000;
+    
+    /** display paths of the folders met during this export, keyed by folder, least recently used evicted first */
+    private final Map<NodeRef, String> folderPaths = Collections.synchronizedMap(
+        new LinkedHashMap<NodeRef, String>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NodeRef, String> eldest) {
+                return size() > PATH_CACHE_SIZE;
+            }
+        });
+    
+    /** prefix string of every qname met during this export */
+    private final ConcurrentMap<QName, String> prefixStrings = new ConcurrentHashMap<QName, String>();
+    
+    /** ignore decision of every property and aspect qname met during this export */
+    private final ConcurrentMap<QName, Boolean> ignoredPropertyQnames = new ConcurrentHashMap<QName, Boolean>();
+    private final ConcurrentMap<QName, Boolean> ignoredAspectQnames = new ConcurrentHashMap<QName, Boolean>();
+    
     private List<QName> ignoredAspects = Collections.unmodifiableList(
     	new ArrayList<QName>() {{
     		add(QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "thumbnailModification"));
@@ -148,6 +209,19 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      * @param registry Alfresco {@link ServiceRegistry} 
      */
     public AlfrescoExportDaoImpl(ServiceRegistry registry) 
+    {
+        this(registry, null);
+    }
+    
+    
+    /**
+     * Data Access Object Builder
+     * 
+     * @param registry Alfresco {@link ServiceRegistry} 
+     * @param nodeDAO used by {@link #getNodeSnapshots(List)} to load the nodes of a page in bulk, 
+     *                null to read them one by one
+     */
+    public AlfrescoExportDaoImpl(ServiceRegistry registry, NodeDAO nodeDAO) 
     {
         log.debug("Test debug logging. Congratulation your AMP is working");
         this.registry  = registry;
@@ -158,6 +232,8 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
         contentService = this.registry.getContentService();
         permissionService = this.registry.getPermissionService();
         versionService = this.registry.getVersionService();
+        dictionaryService = this.registry.getDictionaryService();
+        this.nodeDAO = nodeDAO;
     }
     
     
@@ -176,9 +252,12 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      */
     public Map<String, String> getPropertiesAsString(NodeRef nodeRef) throws Exception 
     {
-                
-        Map<QName, Serializable> properties = this.getProperties(nodeRef);
-        
+        return this.formatProperties(this.getProperties(nodeRef));
+    }
+    
+    
+    private Map<String, String> formatProperties(Map<QName, Serializable> properties) throws Exception 
+    {
         Map<String, String> props = new HashMap<String, String>();
         Set<QName> qNameSet = properties.keySet();
         
@@ -245,17 +324,7 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      */
     public List<NodeRef> getFolderChildren(NodeRef nodeRef) throws Exception 
     {
-        
-        List<FileInfo> folders = service.listFolders(nodeRef);
-        
-        List<NodeRef> listChildren = new ArrayList<NodeRef>();
-        
-        for (FileInfo fileInfo : folders) 
-        {
-            listChildren.add(fileInfo.getNodeRef());
-        }
-        
-        return listChildren;
+        return getChildrenOfTypes(nodeRef, this.getFolderTypes());
     }
 
     
@@ -264,16 +333,7 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      */
     public List<NodeRef> getFileChildren(NodeRef nodeRef) throws Exception 
     {
-        List<FileInfo> files = service.listFiles(nodeRef);
-        
-        List<NodeRef> listChildren = new ArrayList<NodeRef>();
-        
-        for (FileInfo fileInfo : files) 
-        {
-            listChildren.add(fileInfo.getNodeRef());
-        }
-        
-        return listChildren;
+        return getChildrenOfTypes(nodeRef, this.getFileTypes());
     }
 
     
@@ -282,60 +342,194 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      */
     public String getPath(NodeRef nodeRef) throws Exception 
     {
-        //get element Path
-        Path path = nodeService.getPath(nodeRef);
-        
         //get element name 
         Serializable name = nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
         
-        //get element Path as String
-        String basePath = path.toDisplayPath(nodeService, permissionService);
+        return this.getPath(nodeRef, name, this.getPrimaryParent(nodeRef));
+    }
+
+    
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getPath(NodeSnapshot)
+     */
+    public String getPath(NodeSnapshot snapshot) throws Exception 
+    {
+        String path = this.getPath(snapshot.nodeRef, snapshot.name, snapshot.parent);
+        if (snapshot.folder)
+        {
+            // its children find their parent path without walking the ancestors again
+            folderPaths.put(snapshot.nodeRef, path);
+        }
+        return path;
+    }
+
+    
+    private String getPath(NodeRef nodeRef, Serializable name, NodeRef parent) throws Exception 
+    {
+        //siblings share the display path of their parent, only the first one met walks the ancestors 
+        String basePath = (parent == null) ? null : folderPaths.get(parent);
+        if (basePath == null)
+        {
+            //get element Path as String
+            basePath = this.toDisplayPath(nodeService.getPath(nodeRef));
+            if (parent != null)
+            {
+                folderPaths.put(parent, basePath);
+            }
+        }
         
         return (basePath + "/" + name);
     }
 
     
     /**
-     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getContent(java.lang.String)
+     * Build the display path of a node the way {@link Path#toDisplayPath(NodeService, PermissionService)} does, 
+     * the path of its parent folder. Every ancestor met on the way is cached with its own display path, 
+     * the nodes filed in any of them no longer walk to the root.
+     */
+    private String toDisplayPath(Path path)
+    {
+        StringBuilder displayPath = new StringBuilder(64);
+        for (int i = 1; i < path.size() - 1; i++)
+        {
+            NodeRef ancestor = ((Path.ChildAssocElement) path.get(i)).getRef().getChildRef();
+            if (permissionService.hasPermission(ancestor, PermissionService.READ) == AccessStatus.ALLOWED)
+            {
+                displayPath.append("/").append(nodeService.getProperty(ancestor, ContentModel.PROP_NAME));
+            }
+            else
+            {
+                displayPath.append("/").append("...");
+            }
+            folderPaths.put(ancestor, displayPath.toString());
+        }
+        return displayPath.toString();
+    }
+
+    
+    private NodeRef getPrimaryParent(NodeRef nodeRef) 
+    {
+        ChildAssociationRef parentAssoc = nodeService.getPrimaryParent(nodeRef);
+        return (parentAssoc == null) ? null : parentAssoc.getParentRef();
+    }
+
+    
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getNodeSnapshots(java.util.List)
      */
-    public ByteArrayOutputStream getContent(NodeRef nodeRef) throws Exception 
+    public List<NodeSnapshot> getNodeSnapshots(List<NodeRef> nodeRefs) throws Exception 
+    {
+        if (nodeDAO != null && nodeRefs.size() > 1)
+        {
+            // loads the nodes, their aspects and properties with a few queries for the whole page 
+            nodeDAO.cacheNodes(nodeRefs);
+        }
+        
+        List<NodeSnapshot> snapshots = new ArrayList<NodeSnapshot>(nodeRefs.size());
+        for (NodeRef nodeRef : nodeRefs) 
+        {
+            QName type = nodeService.getType(nodeRef);
+            Map<QName, Serializable> properties = nodeService.getProperties(nodeRef);
+            
+            NodeSnapshot snapshot = new NodeSnapshot();
+            snapshot.nodeRef = nodeRef;
+            snapshot.type = this.getQnameStringFormat(type);
+            snapshot.aspects = this.formatAspects(nodeService.getAspects(nodeRef));
+            snapshot.properties = this.formatProperties(properties);
+            snapshot.name = (String) properties.get(ContentModel.PROP_NAME);
+            snapshot.parent = this.getPrimaryParent(nodeRef);
+            // same rule as the file folder service 
+            snapshot.folder = dictionaryService.isSubClass(type, ContentModel.TYPE_FOLDER) 
+                    && !dictionaryService.isSubClass(type, ContentModel.TYPE_SYSTEM_FOLDER);
+            snapshots.add(snapshot);
+        }
+        return snapshots;
+    }
+
+    
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getContent(NodeRef, OutputStream)
+     */
+    public boolean getContent(NodeRef nodeRef, OutputStream out) throws Exception 
     {
         ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
         if (reader == null)
         {
             // no data for this node
-            return null;
+            return false;
         }
 
-        
+        this.copyContent(reader, out);
+        return true;
+    }
+    
+    
+    /**
+     * Copy the content through the buffer of the calling thread
+     * 
+     * @return number of bytes copied
+     * @throws ContentIOException if the content can not be read, eg. its bin file is missing or damaged
+     * @throws IOException if the output can not be written
+     */
+    private long copyContent(ContentReader reader, OutputStream out) throws IOException 
+    {
         InputStream in = reader.getContentInputStream();
-        int size = in.available();
-        
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buf = new byte[ (size + 100) ];
+        try
+        {
+            return this.copyContent(reader, in, out);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Copy the content from a stream already opened, it is not closed
+     * 
+     * @return number of bytes copied
+     * @throws ContentIOException if the content can not be read
+     * @throws IOException if the output can not be written
+     */
+    private long copyContent(ContentReader reader, InputStream in, OutputStream out) throws IOException 
+    {
+        byte[] buf = copyBuffer.get();
+        long size = 0;
         int sizeOut;
         
-        while ((sizeOut=in.read(buf)) != -1 ) 
+        while ((sizeOut=readContent(reader, in, buf)) != -1 ) 
         {
             out.write(buf, 0, sizeOut);
+            size += sizeOut;
         }
-        
         out.flush();
-        out.close();
-        
-        in.close();
         
-        
-        return out;
+        return size;
+    }
+
+    /**
+     * Read from the content, a read error is reported as the content store reports a missing bin file, 
+     * so it is handled the same way and kept apart from the errors writing the export
+     */
+    private int readContent(ContentReader reader, InputStream in, byte[] buf) 
+    {
+        try
+        {
+            return in.read(buf);
+        }
+        catch (IOException e)
+        {
+            throw new ContentIOException("Failed to read content " + reader.getContentUrl(), e);
+        }
     }
 
-    public boolean getContentAndStoreInFile(NodeRef nodeRef, String outputFileName) throws Exception 
+    public long getContentAndStoreInFile(NodeRef nodeRef, String outputFileName) throws Exception 
     {
         ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
         if (reader == null)
         {
             // no data for this node
-            return false;
+            return -1;
         }
        
         /*
@@ -343,21 +537,212 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
          * Catch the exception and log the error and create a 0 byte file 
          */
         File output = new File(outputFileName);
+        // never write through a file left by an earlier export, with linkContent it is the content store file itself
+        Files.deleteIfExists(output.toPath());
         
+        // content in a file store is copied file to file without going through the heap
+        if (reader instanceof FileContentReader)
+        {
+            File source = ((FileContentReader) reader).getFile();
+            BasicFileAttributes attributes = (source == null) ? null : fileAttributes(source);
+            if (attributes != null && attributes.isRegularFile())
+            {
+                if (linkContent && linkFile(source, output))
+                {
+                    contentTransferStats.linked();
+                    return attributes.size();
+                }
+                long size = transferFile(source, output);
+                contentTransferStats.transferred(size);
+                return size;
+            }
+        }
+        
+        long size = 0;
         try {
         	log.debug("Before getting content for file " + nodeService.getProperties(nodeRef).get(ContentModel.PROP_CONTENT));
-        	reader.getContent(output);
+        	OutputStream out = new FileOutputStream(output);
+        	try {
+        		size = this.copyContent(reader, out);
+        		contentTransferStats.streamed(size);
+        	}
+        	finally {
+        		out.close();
+        	}
         }
         catch ( ContentIOException ex ) {
         	log.debug(ex);
         	log.error(ex);
         	writeZeroBytes(outputFileName);
-        	
+        	size = 0;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the attributes of the file, read with a single stat, null if they can not be read
+     */
+    private static BasicFileAttributes fileAttributes(File file) 
+    {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            return null;
         }
+    }
 
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#storeContentInSink(org.alfresco.service.cmr.repository.NodeRef, org.alfresco.extensions.bulkexport.model.ExportSink, java.lang.String)
+     */
+    public long storeContentInSink(NodeRef nodeRef, ExportSink sink, String outputFileName) throws Exception 
+    {
+        final ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        if (reader == null)
+        {
+            // no data for this node
+            return -1;
+        }
+        
+        final InputStream in;
+        try {
+            in = reader.getContentInputStream();
+        }
+        catch (ContentIOException ex) {
+            // missing bin file, an empty file is written as a file system export would, before the 
+            // entry is started with the size of the content
+            log.error(ex);
+            sink.addFile(outputFileName, new byte[0]);
+            return 0;
+        }
+        
+        final long[] copied = new long[1];
+        try {
+            sink.addFile(outputFileName, reader.getSize(), new ExportSink.EntryWriter() {
+                public void write(OutputStream out) throws IOException 
+                {
+                    // a read error once the entry is started fails the file instead of ending it 
+                    // as if it were complete, an object store upload is aborted
+                    copied[0] = copyContent(reader, in, out);
+                }
+            });
+        }
+        finally {
+            in.close();
+        }
+        contentTransferStats.streamed(copied[0]);
+        return copied[0];
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#storeExportedContentInFile(java.lang.String, java.lang.String)
+     */
+    public boolean storeExportedContentInFile(String exportedFileName, String outputFileName) throws Exception 
+    {
+        File source = new File(exportedFileName);
+        if (!source.isFile())
+        {
+            return false;
+        }
+        File output = new File(outputFileName);
+        if (isSamePath(source, output))
+        {
+            // the content is not exported anywhere else, deleting the output would delete it
+            return false;
+        }
+        if (!linkFile(source, output))
+        {
+            // never write through a link left by an earlier export, it may be shared with other files
+            Files.deleteIfExists(output.toPath());
+            transferFile(source, output);
+        }
+        contentTransferStats.deduplicated();
         return true;
     }
 
+    /**
+     * Hard link the export file to the content store file
+     * 
+     * @return false if the file system can not link them, eg. they are on different devices
+     */
+    private boolean linkFile(File source, File output) 
+    {
+        if (isSamePath(source, output)) {
+            log.warn("Can not link " + output.getPath() + " to itself");
+            return false;
+        }
+        try {
+            Files.deleteIfExists(output.toPath());
+            Files.createLink(output.toPath(), source.toPath());
+            return true;
+        }
+        catch (IOException e) {
+            log.debug("Can not link " + output.getPath() + " to the content store, copying it: " + e.getMessage());
+        }
+        catch (UnsupportedOperationException e) {
+            log.debug("Can not link " + output.getPath() + " to the content store, copying it: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static boolean isSamePath(File source, File output) 
+    {
+        return source.getAbsoluteFile().toPath().normalize().equals(output.getAbsoluteFile().toPath().normalize());
+    }
+
+    /**
+     * Copy the content store file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, 
+     * which lets the kernel copy the data without user space buffers. The output must not exist, a file 
+     * linked to the content store is never written in place.
+     * 
+     * @return number of bytes copied
+     */
+    private long transferFile(File source, File output) throws IOException 
+    {
+        FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        try {
+            FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+                return position;
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getContentTransferStats()
+     */
+    public ContentTransferStats getContentTransferStats() 
+    {
+        return contentTransferStats;
+    }
+
+    /**
+     * If set content stored in a file content store is hard linked into the export instead of copied. 
+     * The export files then share the content store files, they must never be modified in place.
+     * 
+     * @param linkContent
+     */
+    public void setLinkContent(boolean linkContent) 
+    {
+        this.linkContent = linkContent;
+    }
+
     //SA 10/30/22 It will happen that some bin files will go missing.
     //If this happens write a 0 bytes file and continue exporting.
     private void writeZeroBytes(String outputFileName) throws Exception {
@@ -383,6 +768,25 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
     }
 
     
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getContentUrl(java.lang.String)
+     */
+    public String getContentUrl(NodeRef nodeRef) throws Exception 
+    {
+        ContentData content = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+        return (content == null) ? null : content.getContentUrl();
+    }
+    
+    
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getNodeDbid(java.lang.String)
+     */
+    public long getNodeDbid(NodeRef nodeRef) throws Exception 
+    {
+        return ((Number) nodeService.getProperty(nodeRef, ContentModel.PROP_NODE_DBID)).longValue();
+    }
+    
+    
     /**
      * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getType(java.lang.String)
      */
@@ -401,7 +805,12 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      */
     public List<QName> getAspects(NodeRef nodeRef) throws Exception 
     {
-        Set<QName> aspectSet = nodeService.getAspects(nodeRef);
+        return this.filterAspects(nodeService.getAspects(nodeRef));
+    }
+    
+    
+    private List<QName> filterAspects(Set<QName> aspectSet) 
+    {
         aspectSet.removeAll(ignoredAspects);
         List<QName> qn = new ArrayList<QName>(aspectSet);
         
@@ -414,7 +823,13 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      */
     public List<String> getAspectsAsString(NodeRef nodeRef) throws Exception 
     {
-        List<QName> qn = this.getAspects(nodeRef);
+        return this.formatAspects(nodeService.getAspects(nodeRef));
+    }
+    
+    
+    private List<String> formatAspects(Set<QName> aspectSet) throws Exception 
+    {
+        List<QName> qn = this.filterAspects(aspectSet);
         List<String> str = new ArrayList<String>();
         
         for (QName qName : qn) 
@@ -529,8 +944,8 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
         return isTypeIgnored(value);
     }
     
-    public List<NodeRef> getAllNodesForQuery(String query, Engine engine) throws IOException {
-    	return ExportUtils.executeQuery(query, registry.getSearchService(), engine);
+    public Iterator<NodeRef> getAllNodesForQuery(String query, QueryLanguage language, int pageSize, Engine engine) {
+    	return ExportUtils.executeQuery(query, language, pageSize, registry.getSearchService(), engine);
     }
     
     public String getPrefixPath(NodeRef nodeRef) throws Exception {
@@ -547,7 +962,19 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      * @param qName
      * @return {@link Boolean}
      */
-    private boolean isPropertyIgnored(QName qName) 
+    private boolean isPropertyIgnored(QName qName) throws Exception 
+    {
+        Boolean ignored = ignoredPropertyQnames.get(qName);
+        if (ignored == null)
+        {
+            ignored = this.evaluatePropertyIgnored(qName);
+            ignoredPropertyQnames.put(qName, ignored);
+        }
+        return ignored;
+    }
+    
+    
+    private boolean evaluatePropertyIgnored(QName qName) throws Exception 
     {
         //verify if qname is in ignored
         for (QName qn : this.ignorePropertyQname) 
@@ -560,7 +987,7 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
         
         //verify if qname prefix is in ignored
         //String prefix = qName.getPrefixString();
-        String prefix = qName.getPrefixedQName(nsR).getPrefixString();
+        String prefix = this.getQnameStringFormat(qName);
         for (String str : this.ignorePropertyPrefix) 
         {
             
@@ -582,7 +1009,19 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      * @param qName
      * @return {@link Boolean}
      */
-    private boolean isAspectIgnored(QName qName) 
+    private boolean isAspectIgnored(QName qName) throws Exception 
+    {
+        Boolean ignored = ignoredAspectQnames.get(qName);
+        if (ignored == null)
+        {
+            ignored = this.evaluateAspectIgnored(qName);
+            ignoredAspectQnames.put(qName, ignored);
+        }
+        return ignored;
+    }
+    
+    
+    private boolean evaluateAspectIgnored(QName qName) throws Exception 
     {
         //verify if qname is in ignored
         for (QName qn : this.ignoreAspectQname) 
@@ -595,7 +1034,7 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
         
         //verify if qname prefix is in ignored
         //String prefix = qName.getPrefixString();
-        String prefix = qName.getPrefixedQName(nsR).getPrefixString();
+        String prefix = this.getQnameStringFormat(qName);
         for (String str : this.ignoreAspectPrefix) 
         {
             if(prefix.startsWith(str))
@@ -608,6 +1047,64 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
     }
     
     
+    /**
+     * Get the children of a node in a single child association fetch, filtered by type in the query
+     * 
+     * @param nodeRef
+     * @param types
+     * @return {@link List}
+     */
+    private List<NodeRef> getChildrenOfTypes(NodeRef nodeRef, Set<QName> types) 
+    {
+        List<ChildAssociationRef> children = nodeService.getChildAssocs(nodeRef, types);
+        List<NodeRef> listChildren = new ArrayList<NodeRef>(children.size());
+        
+        for (ChildAssociationRef childAssociationRef : children) 
+        {
+            listChildren.add(childAssociationRef.getChildRef());
+        }
+        
+        return listChildren;
+    }
+    
+    
+    /**
+     * Folder types to export, every sub type of cm:folder that is not a system folder or ignored
+     * 
+     * @return {@link Set}
+     */
+    private Set<QName> getFolderTypes() 
+    {
+        if (folderTypes == null)
+        {
+            Set<QName> types = new HashSet<QName>(dictionaryService.getSubTypes(ContentModel.TYPE_FOLDER, true));
+            types.add(ContentModel.TYPE_FOLDER);
+            types.removeAll(dictionaryService.getSubTypes(ContentModel.TYPE_SYSTEM_FOLDER, true));
+            types.removeAll(Arrays.asList(this.ignoredType));
+            folderTypes = types;
+        }
+        return folderTypes;
+    }
+    
+    
+    /**
+     * Document types to export, every sub type of cm:content that is not ignored
+     * 
+     * @return {@link Set}
+     */
+    private Set<QName> getFileTypes() 
+    {
+        if (fileTypes == null)
+        {
+            Set<QName> types = new HashSet<QName>(dictionaryService.getSubTypes(ContentModel.TYPE_CONTENT, true));
+            types.add(ContentModel.TYPE_CONTENT);
+            types.removeAll(Arrays.asList(this.ignoredType));
+            fileTypes = types;
+        }
+        return fileTypes;
+    }
+    
+    
     /**
      * Verify if the tipe qname is ignored 
      * 
@@ -637,7 +1134,13 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao
      */
     private String getQnameStringFormat(QName qName) throws Exception
     {
-        return qName.getPrefixedQName(nsR).getPrefixString();
+        String prefixString = prefixStrings.get(qName);
+        if (prefixString == null)
+        {
+            prefixString = qName.getPrefixedQName(nsR).getPrefixString();
+            prefixStrings.put(qName, prefixString);
+        }
+        return prefixString;
     }
 
 
@@ -0,0 +1,104 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the content of the exported files was copied
+ * 
+ */
+public class ContentTransferStats
+{
+    private final AtomicLong linkedFiles = new AtomicLong();
+    private final AtomicLong transferredFiles = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicLong streamedFiles = new AtomicLong();
+    private final AtomicLong streamedBytes = new AtomicLong();
+    private final AtomicLong deduplicatedFiles = new AtomicLong();
+
+    void linked()
+    {
+        linkedFiles.incrementAndGet();
+    }
+
+    void transferred(long bytes)
+    {
+        transferredFiles.incrementAndGet();
+        transferredBytes.addAndGet(bytes);
+    }
+
+    void streamed(long bytes)
+    {
+        streamedFiles.incrementAndGet();
+        streamedBytes.addAndGet(bytes);
+    }
+
+    void deduplicated()
+    {
+        deduplicatedFiles.incrementAndGet();
+    }
+
+    /** @return files hard linked to the content store */
+    public long getLinkedFiles()
+    {
+        return linkedFiles.get();
+    }
+
+    /** @return files copied from the content store file with a channel transfer */
+    public long getTransferredFiles()
+    {
+        return transferredFiles.get();
+    }
+
+    public long getTransferredBytes()
+    {
+        return transferredBytes.get();
+    }
+
+    /** @return files copied through the content reader streams */
+    public long getStreamedFiles()
+    {
+        return streamedFiles.get();
+    }
+
+    public long getStreamedBytes()
+    {
+        return streamedBytes.get();
+    }
+
+    /** @return files linked to or copied from a file of the export with the same content */
+    public long getDeduplicatedFiles()
+    {
+        return deduplicatedFiles.get();
+    }
+
+    /** @return bytes copied, linked and deduplicated files not included */
+    public long getBytes()
+    {
+        return transferredBytes.get() + streamedBytes.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "linked: " + getLinkedFiles() 
+                + ", transferred: " + getTransferredFiles() + " (" + getTransferredBytes() + " bytes)"
+                + ", streamed: " + getStreamedFiles() + " (" + getStreamedBytes() + " bytes)"
+                + ", deduplicated: " + getDeduplicatedFiles();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.dao;
+
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * This class holds what the export needs from a node, read at once by 
+ * {@link AlfrescoExportDao#getNodeSnapshots(List)}
+ * 
+ */
+public class NodeSnapshot
+{
+    public NodeRef nodeRef;
+    /** type in its prefixed string format */
+    public String type;
+    /** aspects that are not ignored, in their prefixed string format */
+    public List<String> aspects;
+    /** properties that are not ignored, formatted for the metadata file */
+    public Map<String, String> properties;
+    public String name;
+    /** primary parent, null for a root node */
+    public NodeRef parent;
+    public boolean folder;
+}
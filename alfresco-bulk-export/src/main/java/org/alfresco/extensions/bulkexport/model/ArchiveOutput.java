@@ -0,0 +1,634 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streams the exported files into archive volumes instead of writing each one to the file system, 
+ * so an export of millions of small files becomes a few large sequential writes.
+ * 
+ * Entries keep the layout of a file system export, their names are the paths of the files relative 
+ * to the export folder. A volume is closed and the next one started once it holds 
+ * <code>volumeSize</code> bytes, an entry is never split so a volume can be larger by one entry. 
+ * Volumes are named <code>{name}-00001.tar</code>, <code>.tar.gz</code> or <code>.zip</code>, numbered 
+ * after the volumes already in the export folder so a resumed export adds to them.
+ * 
+ * A volume is written as <code>{volume}.part</code> and only renamed once it is complete, the entries 
+ * of a volume are buffered and a zip volume has no central directory until it is closed. Nodes are 
+ * recorded as exported with {@link #afterVolumeClose(VolumeCommit)}, once their entries are in a 
+ * complete volume. After a crash the <code>.part</code> volume is deleted by the next run, which 
+ * exports its nodes again.
+ * 
+ * Tar volumes are in the ustar format, with the GNU extensions for names over 100 bytes and files 
+ * over 8GB. Entries are written one at a time, the content of a file is streamed while the archive is locked. 
+ * A file is only written as a hard link to a file of the same volume, so every volume can be extracted 
+ * on its own, a content first written to an earlier volume or by an earlier run is written again.
+ */
+public class ArchiveOutput implements ExportSink
+{
+    private static final Log log = LogFactory.getLog(ArchiveOutput.class);
+
+    public static final long DEFAULT_VOLUME_SIZE = 1024L * 1024 * 1024;
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final String LONG_LINK_NAME = "././@LongLink";
+    private static final String PART_EXTENSION = ".part";
+
+    /**
+     * Format of the volumes
+     */
+    public enum Format
+    {
+        /** no archive, every file is written to the file system */
+        NONE(null),
+        TAR(".tar"),
+        TGZ(".tar.gz"),
+        ZIP(".zip");
+
+        private final String extension;
+
+        private Format(String extension)
+        {
+            this.extension = extension;
+        }
+
+        public String getExtension()
+        {
+            return extension;
+        }
+
+        /**
+         * @param value case insensitive name, may be null or empty
+         * @return the format, {@link #NONE} when no value is given
+         * @throws IllegalArgumentException if the value is not a format
+         */
+        public static Format parse(String value)
+        {
+            if (value == null || value.isEmpty())
+            {
+                return NONE;
+            }
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private final File dir;
+    private final String basePath;
+    private final String name;
+    private final Format format;
+    private final long volumeSize;
+    private final long mtime = System.currentTimeMillis() / 1000;
+
+    private int volumeNumber;
+    private int volumes = 0;
+    private long entries = 0;
+    private CountingOutputStream counter;
+    private OutputStream volume;
+    private File volumeFile;
+    private ZipOutputStream zip;
+
+    /** names of the file entries of the current volume, the targets a link can have */
+    private final Set<String> volumeFiles = new HashSet<String>();
+
+    /** waiting for the entries added before them to be in a complete volume */
+    private List<VolumeCommit> pendingCommits = new ArrayList<VolumeCommit>();
+
+    /**
+     * Action run once the entries added before it are in a complete volume
+     */
+    public interface VolumeCommit
+    {
+        void committed() throws IOException;
+    }
+
+    /**
+     * @param basePath export folder, where the volumes are written and the root of the entry names
+     * @param name start of the volume names
+     * @param format
+     * @param volumeSize bytes written to a volume before the next one is started
+     */
+    public ArchiveOutput(String basePath, String name, Format format, long volumeSize)
+    {
+        if (format == Format.NONE)
+        {
+            throw new IllegalArgumentException("No archive format");
+        }
+        this.dir = new File(basePath);
+        this.basePath = basePath;
+        this.name = name;
+        this.format = format;
+        this.volumeSize = (volumeSize > 0) ? volumeSize : DEFAULT_VOLUME_SIZE;
+        this.volumeNumber = lastVolumeNumber();
+        deleteUnfinishedVolumes();
+    }
+
+    /**
+     * @return number of volumes written by this output
+     */
+    public synchronized int getVolumes()
+    {
+        return volumes;
+    }
+
+    /**
+     * @return number of entries written by this output
+     */
+    public synchronized long getEntries()
+    {
+        return entries;
+    }
+
+    public boolean isLocal()
+    {
+        return false;
+    }
+
+    /**
+     * @param path full path of the folder
+     * @throws IOException
+     */
+    public synchronized void addDirectory(String path) throws IOException
+    {
+        String entryName = entryName(path) + "/";
+        startEntry();
+        if (zip != null)
+        {
+            zip.putNextEntry(new ZipEntry(entryName));
+            zip.closeEntry();
+        }
+        else
+        {
+            writeTarHeader(entryName, 0, '5', null);
+        }
+        endEntry();
+    }
+
+    /**
+     * @param path full path of the file
+     * @param data content of the file
+     * @throws IOException
+     */
+    public synchronized void addFile(String path, final byte[] data) throws IOException
+    {
+        addFile(path, data.length, new EntryWriter() {
+            public void write(OutputStream out) throws IOException
+            {
+                out.write(data);
+            }
+        });
+    }
+
+    /**
+     * Add a file streamed by the writer. A tar entry is padded with zeros when the writer fails or 
+     * writes less than the given size, the archive stays readable.
+     * 
+     * @param path full path of the file
+     * @param size number of bytes the writer writes
+     * @param writer
+     * @throws IOException
+     */
+    public synchronized void addFile(String path, long size, EntryWriter writer) throws IOException
+    {
+        String entryName = entryName(path);
+        startEntry();
+        if (zip != null)
+        {
+            zip.putNextEntry(new ZipEntry(entryName));
+            try
+            {
+                writer.write(new FilterOutputStream(zip) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException
+                    {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close()
+                    {
+                        // the entry is closed by the archive
+                    }
+                });
+            }
+            finally
+            {
+                zip.closeEntry();
+            }
+        }
+        else
+        {
+            writeTarHeader(entryName, size, '0', null);
+            TarEntryOutputStream entry = new TarEntryOutputStream(volume, size);
+            try
+            {
+                writer.write(entry);
+            }
+            finally
+            {
+                if (entry.finish())
+                {
+                    log.warn("Content of " + entryName + " is shorter than its size " + size + ", padded with zeros");
+                }
+            }
+            volumeFiles.add(entryName);
+        }
+        endEntry();
+    }
+
+    /**
+     * Add a hard link to a file already in the current volume, zip archives have no links
+     * 
+     * @param path full path of the link
+     * @param target full path of the file
+     * @return false if the format can not link files, or the file is not in the current volume
+     * @throws IOException
+     */
+    public synchronized boolean addLink(String path, String target) throws IOException
+    {
+        if (format == Format.ZIP || !volumeFiles.contains(entryName(target)))
+        {
+            return false;
+        }
+        startEntry();
+        writeTarHeader(entryName(path), 0, '1', entryName(target));
+        endEntry();
+        return true;
+    }
+
+    /**
+     * Run the commit once every entry added so far is in a complete volume, at once if there is no 
+     * volume being written
+     * 
+     * @param commit
+     * @throws IOException
+     */
+    public synchronized void afterVolumeClose(VolumeCommit commit) throws IOException
+    {
+        if (volume == null)
+        {
+            commit.committed();
+            return;
+        }
+        pendingCommits.add(commit);
+    }
+
+    /**
+     * Close the current volume
+     */
+    public synchronized void close() throws IOException
+    {
+        closeVolume();
+    }
+
+    private void startEntry() throws IOException
+    {
+        if (volume == null)
+        {
+            openVolume();
+        }
+    }
+
+    private void endEntry() throws IOException
+    {
+        entries++;
+        if (counter.getCount() >= volumeSize)
+        {
+            closeVolume();
+        }
+    }
+
+    private void openVolume() throws IOException
+    {
+        volumeNumber++;
+        volumeFile = new File(dir, name + "-" + String.format("%05d", volumeNumber) + format.getExtension());
+        File file = new File(volumeFile.getPath() + PART_EXTENSION);
+        log.info("Writing archive volume " + volumeFile.getPath());
+        counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        volumes++;
+        switch (format)
+        {
+            case ZIP:
+                zip = new ZipOutputStream(counter, StandardCharsets.UTF_8);
+                volume = zip;
+                break;
+            case TGZ:
+                volume = new GZIPOutputStream(counter, 64 * 1024);
+                break;
+            default:
+                volume = counter;
+        }
+    }
+
+    private void closeVolume() throws IOException
+    {
+        if (volume == null)
+        {
+            return;
+        }
+        try
+        {
+            if (zip == null)
+            {
+                // end of archive
+                volume.write(new byte[2 * BLOCK_SIZE]);
+            }
+        }
+        finally
+        {
+            OutputStream closing = volume;
+            volume = null;
+            zip = null;
+            volumeFiles.clear();
+            closing.close();
+        }
+        Files.move(new File(volumeFile.getPath() + PART_EXTENSION).toPath(), volumeFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        List<VolumeCommit> commits = pendingCommits;
+        pendingCommits = new ArrayList<VolumeCommit>();
+        for (VolumeCommit commit : commits)
+        {
+            commit.committed();
+        }
+    }
+
+    private void writeTarHeader(String entryName, long size, char type, String linkName) throws IOException
+    {
+        byte[] nameBytes = entryName.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100)
+        {
+            writeLongName('L', nameBytes);
+        }
+        byte[] linkBytes = (linkName == null) ? null : linkName.getBytes(StandardCharsets.UTF_8);
+        if (linkBytes != null && linkBytes.length > 100)
+        {
+            writeLongName('K', linkBytes);
+        }
+
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+        writeOctal(header, 100, 8, (type == '5') ? 0755 : 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        writeSize(header, 124, size);
+        writeOctal(header, 136, 12, mtime);
+        header[156] = (byte) type;
+        if (linkBytes != null)
+        {
+            System.arraycopy(linkBytes, 0, header, 157, Math.min(100, linkBytes.length));
+        }
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        writeChecksum(header);
+        volume.write(header);
+    }
+
+    /**
+     * GNU extension, the name is the content of an entry before the one it names
+     */
+    private void writeLongName(char type, byte[] nameBytes) throws IOException
+    {
+        byte[] header = new byte[BLOCK_SIZE];
+        byte[] longLink = LONG_LINK_NAME.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(longLink, 0, header, 0, longLink.length);
+        writeOctal(header, 100, 8, 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        writeSize(header, 124, nameBytes.length + 1);
+        writeOctal(header, 136, 12, 0);
+        header[156] = (byte) type;
+        System.arraycopy("ustar  \u0000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        writeChecksum(header);
+        volume.write(header);
+        TarEntryOutputStream entry = new TarEntryOutputStream(volume, nameBytes.length + 1);
+        entry.write(nameBytes);
+        entry.finish();
+    }
+
+    private static void writeSize(byte[] header, int offset, long size)
+    {
+        if (size <= MAX_OCTAL_SIZE)
+        {
+            writeOctal(header, offset, 12, size);
+            return;
+        }
+        // GNU base-256 encoding for files over 8GB
+        header[offset] = (byte) 0x80;
+        for (int i = offset + 11; i > offset; i--)
+        {
+            header[i] = (byte) size;
+            size >>>= 8;
+        }
+    }
+
+    private static void writeOctal(byte[] header, int offset, int length, long value)
+    {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        int start = offset + digits - octal.length();
+        Arrays.fill(header, offset, start, (byte) '0');
+        for (int i = 0; i < octal.length(); i++)
+        {
+            header[start + i] = (byte) octal.charAt(i);
+        }
+        header[offset + digits] = 0;
+    }
+
+    private static void writeChecksum(byte[] header)
+    {
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header)
+        {
+            sum += b & 0xff;
+        }
+        writeOctal(header, 148, 7, sum);
+        header[155] = ' ';
+    }
+
+    private String entryName(String path)
+    {
+        return FileFolder.relativePath(basePath, path);
+    }
+
+    /**
+     * @return highest number of the volumes of this archive already in the export folder, 0 if there is none
+     */
+    private int lastVolumeNumber()
+    {
+        String[] names = dir.list();
+        int last = 0;
+        if (names == null)
+        {
+            return last;
+        }
+        String prefix = name + "-";
+        for (String volumeName : names)
+        {
+            if (!volumeName.startsWith(prefix) || !volumeName.endsWith(format.getExtension()))
+            {
+                continue;
+            }
+            String number = volumeName.substring(prefix.length(), volumeName.length() - format.getExtension().length());
+            try
+            {
+                last = Math.max(last, Integer.parseInt(number));
+            }
+            catch (NumberFormatException e)
+            {
+                // not a volume
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Delete the volumes of this archive left unfinished by a crash, their nodes were not recorded as exported
+     */
+    private void deleteUnfinishedVolumes()
+    {
+        String[] names = dir.list();
+        if (names == null)
+        {
+            return;
+        }
+        for (String volumeName : names)
+        {
+            if (volumeName.startsWith(name + "-") && volumeName.endsWith(format.getExtension() + PART_EXTENSION))
+            {
+                File unfinished = new File(dir, volumeName);
+                log.warn("Deleting unfinished archive volume " + unfinished.getPath());
+                if (!unfinished.delete())
+                {
+                    log.error("Failed to delete unfinished archive volume " + unfinished.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written to a volume file
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * Data of a tar entry, held to the size given in its header and padded to a whole block
+     */
+    private static class TarEntryOutputStream extends OutputStream
+    {
+        private final OutputStream out;
+        private final long size;
+        private long written = 0;
+
+        TarEntryOutputStream(OutputStream out, long size)
+        {
+            this.out = out;
+            this.size = size;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (written + len > size)
+            {
+                throw new IOException("Entry content is longer than its size " + size);
+            }
+            out.write(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void close()
+        {
+            // the entry is finished by the archive
+        }
+
+        /**
+         * Pad the entry to its size and to the end of its last block
+         * 
+         * @return true if the content was shorter than its size
+         */
+        boolean finish() throws IOException
+        {
+            boolean shorter = written < size;
+            long padding = (size - written) + ((BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE);
+            byte[] zeros = new byte[(int) Math.min(padding, 64 * 1024)];
+            while (padding > 0)
+            {
+                int length = (int) Math.min(padding, zeros.length);
+                out.write(zeros, 0, length);
+                padding -= length;
+            }
+            written = size;
+            return shorter;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Where the exported folders, contents and metadata files are written. Paths are the full paths the 
+ * files have in a file system export, under the export folder, a sink that does not write to the 
+ * file system names its files after the path relative to the export folder.
+ * 
+ * The methods may be called by several export threads at once.
+ */
+public interface ExportSink extends Closeable
+{
+    /**
+     * Writes the content of a file
+     */
+    public interface EntryWriter
+    {
+        /**
+         * @param out the file, it must not be closed
+         * @throws IOException
+         */
+        public void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @return true if the files are written to the local file system, where the content can be copied 
+     *         straight from the content store and files can be written in place
+     */
+    public boolean isLocal();
+
+    /**
+     * @param path full path of the folder
+     * @throws IOException
+     */
+    public void addDirectory(String path) throws IOException;
+
+    /**
+     * @param path full path of the file
+     * @param data content of the file
+     * @throws IOException
+     */
+    public void addFile(String path, byte[] data) throws IOException;
+
+    /**
+     * Add a file streamed by the writer
+     * 
+     * @param path full path of the file
+     * @param size number of bytes the writer writes, as far as it is known
+     * @param writer
+     * @throws IOException
+     */
+    public void addFile(String path, long size, EntryWriter writer) throws IOException;
+
+    /**
+     * Add a file with the same content as a file already written
+     * 
+     * @param path full path of the file
+     * @param target full path of the file already written
+     * @return false if the sink can not do it without the content being written again
+     * @throws IOException
+     */
+    public boolean addLink(String path, String target) throws IOException;
+}
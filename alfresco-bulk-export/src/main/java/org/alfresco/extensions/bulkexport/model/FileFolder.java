@@ -16,26 +16,20 @@
  */
 package org.alfresco.extensions.bulkexport.model;
 
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.alfresco.extensions.bulkexport.utils.PathIndex;
 import org.alfresco.service.ServiceRegistry;
-import org.alfresco.service.cmr.dictionary.PropertyDefinition;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
-import org.alfresco.service.namespace.QName;
 //
 //SA 09/22/2022 This class can't be found in alf 7.2 install. It's only used on one line to check isEmpty
 //replace it with null and empty string check
@@ -53,15 +47,6 @@ import org.apache.commons.logging.LogFactory;
  */
 public class FileFolder 
 {
-	// XML 1.0
-	// #x9 | #xA | #xD | [#x20-#xD7FF] | [#xE000-#xFFFD] | [#x10000-#x10FFFF]
-	public static String XML10PATTERN = "[^"
-            + "\u0009\r\n"
-            + "\u0020-\uD7FF"
-            + "\uE000-\uFFFD"
-            + "\ud800\udc00-\udbff\udfff"
-            + "]";
-	
     Log log = LogFactory.getLog(FileFolder.class);
  
     /** {@link String} path to export data location in Alfresco
@@ -73,10 +58,16 @@ public class FileFolder
      * exported or no 
      */
     private boolean scapeExported;
+    
+    /** files found in the export folder when the export started, null to check the file system */
+    private PathIndex exportedIndex = null;
     private ServiceRegistry serviceRegistry;
-    private Set<String> invalidEmptyProps = new HashSet<String>();
-    private Set<String> processedTypesAndAspects = new HashSet<String>();
+    // shared by every export thread and job
+    private static final InvalidEmptyPropertyCache invalidEmptyPropertyCache = new InvalidEmptyPropertyCache();
     private StringBuilder parentLogger = null;
+    
+    /** where the files are written, the file system unless an archive or object store is set */
+    private ExportSink sink = new FileSystemSink();
     private List<String> customAspects = null;
     private Map<String, String> customProperties = null;
     private Map<String, String> updateTypesOrAspectsOrProperties = null;
@@ -105,6 +96,75 @@ public class FileFolder
         return this.basePath;
     }
     
+    /**
+     * @return true if the files already exported are not written again
+     */
+    public boolean isScapeExported()
+    {
+        return this.scapeExported;
+    }
+    
+    /**
+     * Answer the checks for files already exported from an index of the export folder
+     * 
+     * @param exportedIndex null to check the file system
+     */
+    public void setExportedIndex(PathIndex exportedIndex)
+    {
+        this.exportedIndex = exportedIndex;
+    }
+    
+    /**
+     * Record a file written by the export in the index of the export folder
+     * 
+     * @param path full path of the file
+     */
+    public void markExported(String path)
+    {
+        if (this.exportedIndex != null)
+        {
+            this.exportedIndex.add(path);
+        }
+    }
+    
+    /**
+     * @return where the files are written
+     */
+    public ExportSink getSink()
+    {
+        return this.sink;
+    }
+    
+    /**
+     * Write the files to an archive or an object store instead of the file system
+     * 
+     * @param sink
+     */
+    public void setSink(ExportSink sink)
+    {
+        this.sink = sink;
+    }
+    
+    /**
+     * @param basePath export folder
+     * @param path full path of a file
+     * @return the path relative to the export folder, with forward slashes and no leading slash
+     */
+    public static String relativePath(String basePath, String path)
+    {
+        if (path.startsWith(basePath))
+        {
+            path = path.substring(basePath.length());
+        }
+        path = path.replace(File.separatorChar, '/');
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/')
+        {
+            start++;
+        }
+        return path.substring(start);
+    }
+    
     public List<String> getAspectsList(String aspects) {
     	if(null != aspects && !aspects.isEmpty()) {
 	    	List<String> items = Arrays.asList(aspects.split("\\s*,\\s*"));
@@ -135,21 +195,11 @@ public class FileFolder
     {
         path = this.basePath + path;
         log.debug("createFolder path to create : " + path);
+        
        
         try
         {
-            File dir = new File(path);
-            if (!dir.exists())
-            {
-                if (!dir.mkdirs())
-                {
-                    log.error("createFolder failed to create path : " + path);
-                }
-                else
-                {
-                    log.debug("createFolder path : " + path);
-                }
-            }
+            this.sink.addDirectory(path);
         }
         catch (Exception e) 
         {
@@ -177,7 +227,7 @@ public class FileFolder
             {
               if (!f.getParentFile().exists())
               {
-                  if (!f.getParentFile().mkdirs())
+                  if (!f.getParentFile().mkdirs() && !f.getParentFile().isDirectory())
                   {
                       log.error("failed to create folder : " + f.getParentFile().getPath());
                   }
@@ -207,49 +257,20 @@ public class FileFolder
      */
     private String createXmlFile(String filePath, String revision) throws Exception 
     {
-        String postfix = (null != revision && !revision.isEmpty())?".v"+revision:"";
-        String fp = filePath + ".metadata.properties.xml"+postfix;
+        String fp = xmlFilePath(filePath, revision);
         
         this.createFile(fp);
         
         return fp;
     }
     
-    
-    /**
-     * create content file
-     * 
-     * @param content
-     * @param filePath
-     * @throws IOException
-     */
-    public void insertFileContent (ByteArrayOutputStream out, String filePath) throws Exception 
+    private String xmlFilePath(String filePath, String revision)
     {
-        log.debug("insertFileContent");
-        filePath = this.basePath + filePath;
-        
-        log.debug("insertFileContent filepath = " + filePath);
-        if(this.isFileExist(filePath) && this.scapeExported)
-        {
-            log.debug("insertFileContent ignore file");
-            return;
-        }
-        
-        this.createFile(filePath);
-        
-        try 
-        {
-            FileOutputStream output = new FileOutputStream(filePath);
-            output.write(out.toByteArray());
-            output.flush();
-            output.close();
-        } 
-        catch (Exception e) 
-        {
-            e.printStackTrace();
-        }
+        String postfix = (null != revision && !revision.isEmpty())?".v"+revision:"";
+        return filePath + ".metadata.properties.xml"+postfix;
     }
-
+    
+    
     /**
      * construct full file path and make directory if it does not exist
      * 
@@ -262,6 +283,11 @@ public class FileFolder
         filePath = this.basePath + filePath;
         
         log.debug("createFullPath filepath = " + filePath);
+        if (!this.sink.isLocal())
+        {
+            // nothing to create, the file is written by the sink
+            return filePath;
+        }
         if(this.isFileExist(filePath) && this.scapeExported)
         {
             log.debug("createFullPath ignore file");
@@ -276,7 +302,7 @@ public class FileFolder
             {
               if (!f.getParentFile().exists())
               {
-                  if (!f.getParentFile().mkdirs())
+                  if (!f.getParentFile().mkdirs() && !f.getParentFile().isDirectory())
                   {
                       log.error("failed to create folder : " + f.getParentFile().getPath());
                   }
@@ -325,9 +351,10 @@ public class FileFolder
         // ZIA - START
         /* Alfresco 4.x has a bug that gets empty date when getting all versions. 
          * It works as expected when we export only the head version.
-         * The method below stores all date properties and checks before writing to xml
+         * The properties below, eg. dates, are checked before writing to xml
          */
-        this.setInvalidTypeProperties(nodeRef, type, aspects);
+        List<Set<String>> invalidEmptyProps = invalidEmptyPropertyCache.get(type, aspects, 
+                serviceRegistry.getDictionaryService(), serviceRegistry.getNamespaceService());
         
         /*
          * We are not going to check the attributes of the custom aspects, 
@@ -377,69 +404,49 @@ public class FileFolder
         }
         // ZIA - END
         
-        String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n<properties>";
-        String footer = "\n</properties>";
-        
-        String tType = "<entry key=\"type\">" + type + "</entry>";
-        String tAspect = "<entry key=\"aspects\">" + this.formatAspects(aspects) + "</entry>";
-        
-        String text = "\n\t" + tType + "\n\t" + tAspect;
-        
-        Set<String> set = properties.keySet();
-        
-        for (String string : set) 
+        try 
         {
-            String key = string;
-            String value = properties.get(key);
+            String fp = this.sink.isLocal() ? this.createXmlFile(filePath, revision) : xmlFilePath(filePath, revision);
             
+            // metadata files are small, one that is not written in place is built in memory and added at once
+            ByteArrayOutputStream built = this.sink.isLocal() ? null : new ByteArrayOutputStream(4096);
+            MetadataXmlWriter xml = (built == null) ? new MetadataXmlWriter(new File(fp)) : new MetadataXmlWriter(built);
+            try 
+            {
+                xml.writeEntry("type", type);
+                xml.writeEntry("aspects", aspects);
+                
+                for (Entry<String, String> property : properties.entrySet()) 
+                {
+                    String key = property.getKey();
+                    String value = property.getValue();
+                    
 	    //SA 09/22/22 StringUtils class has been removed and when we run the export module, it throws NoClassDefn .....Exception
-            //if(isInvalidEmptyType(key, value) || StringUtils.isEmpty(value)) {
-            if(isInvalidEmptyType(key, value) || value == null || value.length() == 0) {
-            	continue;
+                    //if(isInvalidEmptyType(key, value) || StringUtils.isEmpty(value)) {
+                    if(isInvalidEmptyType(key, value, invalidEmptyProps) || value == null || value.length() == 0) {
+                    	continue;
+                    }
+                    
+                    xml.writeEntry(key, value);
+                }
             }
-           
-            value = this.formatProperty(value);
-            
-            
-            text += "\n\t<entry key=\"" + key +"\">" + value + "</entry>";
-        }
-        
-        String validXMLText = text.replaceAll(XML10PATTERN, "");
-        if(!text.equals(validXMLText)) {
-        	String validateMsg = "VALIDATE: Stripped invalid XML characters....."+filePath;
-        	log.error(validateMsg);
-        	parentLogger.append(validateMsg);
-        	text = validXMLText;
-        }
-        
-        try 
-        {
-            String fp = this.createXmlFile(filePath, revision);
-            File file = new File(fp);
-            
-//            FileWriter fw = new FileWriter(file.getAbsoluteFile());
-            
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF8"));
-            
-            StringBuilder builder = new StringBuilder();
-            builder.append(header);
-            builder.append(text);
-            builder.append(footer);
-            
-            bw.write(builder.toString());
-            bw.close();
-            
-            
-//            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF8"));
-//            out.append(header);
-//            out.append(text);
-//            out.append(footer);
-//            
-//            out.flush();
-//            out.close();
-            
-            
+            finally 
+            {
+                xml.close();
+            }
+            if (built != null)
+            {
+                this.sink.addFile(fp, built.toByteArray());
+            }
+            this.markExported(fp);
             
+            if(xml.hasStrippedInvalidCharacters()) {
+            	String validateMsg = "VALIDATE: Stripped invalid XML characters....."+filePath;
+            	log.error(validateMsg);
+            	synchronized (parentLogger) {
+            		parentLogger.append(validateMsg);
+            	}
+            }
         }
         catch (Exception e) 
         {
@@ -509,51 +516,6 @@ public class FileFolder
 	}
     
     
-    /**
-     * Format aspects
-     * 
-     * @param aspects
-     * @return
-     */
-    private String formatAspects(List<String> aspects)
-    {
-                
-        String dado = "";
-        
-        boolean flag = false;
-        for (String string : aspects) 
-        {
-            if(flag)
-            {
-                dado += ",";
-            }
-            
-            dado += string;
-            flag = true;
-        }
-        
-        return dado;
-    }
-    
-    
-    /**
-     * Method to replace special character to html code
-     * 
-     * @param value {@link String} value of field
-     * @return {@link String}
-     */
-    private String formatProperty(String value)
-    {        
-        
-        //format &
-        value = value.replaceAll("&", "&amp;");
-        //format < and >
-        value = value.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
-        
-        return value;
-    }
-    
-    
     /**
      * Method to see if file already exists
      * 
@@ -562,6 +524,10 @@ public class FileFolder
      */
     private boolean isFileExist(String path)
     {
+        if (this.exportedIndex != null)
+        {
+            return this.exportedIndex.contains(path);
+        }
         File f=new File(path);
         
         if(f.exists())
@@ -572,54 +538,11 @@ public class FileFolder
         return false;
     }
    
-    private boolean isInvalidEmptyType(String key, String value) {
-       	if(this.invalidEmptyProps.contains(key) && (null == value || value.isEmpty())) {
+    private boolean isInvalidEmptyType(String key, String value, List<Set<String>> invalidEmptyProps) {
+       	if((null == value || value.isEmpty()) && InvalidEmptyPropertyCache.isInvalidEmpty(key, invalidEmptyProps)) {
         	return true;
         }
        	return false;
     }
-    private void setInvalidTypeProperties(NodeRef nodeRef, String type, List<String> aspects) {
-    	if(this.processedTypesAndAspects.contains(type) && this.processedTypesAndAspects.containsAll(aspects)) {
-    		return;
-    	}
-        Map<QName, PropertyDefinition> props = new HashMap<QName, PropertyDefinition>();
-    	if(null != type && !type.isEmpty() && !this.processedTypesAndAspects.contains(type)) {
-        	props.putAll(serviceRegistry.getDictionaryService().getType(getQNameFromPrefixString(type)).getProperties());
-        	this.processedTypesAndAspects.add(type);
-    	}
-    	if(null != aspects && !aspects.isEmpty() && !this.processedTypesAndAspects.containsAll(aspects)) {
-    		for(String aspect: aspects) {
-	        	if(this.processedTypesAndAspects.contains(aspect)) {
-	        		continue;
-	        	}
-	        	props.putAll(serviceRegistry.getDictionaryService().getAspect(getQNameFromPrefixString(aspect)).getProperties());
-	        	this.processedTypesAndAspects.add(aspect);
-    		}
-    	}
-    	for(Entry<QName, PropertyDefinition> entry : props.entrySet()) {
-    		/*
-    		if(entry.getValue().getDataType().getName().equals(DataTypeDefinition.DATE) ||
-    				entry.getValue().getDataType().getName().equals(DataTypeDefinition.DATETIME) ||
-    				entry.getValue().getDataType().getName().equals(DataTypeDefinition.INT) ||
-    				entry.getValue().getDataType().getName().equals(DataTypeDefinition.FLOAT) ||
-    				entry.getValue().getDataType().getName().equals(DataTypeDefinition.LONG) ||
-    				entry.getValue().getDataType().getName().equals(DataTypeDefinition.DOUBLE)) {
-    			this.invalidEmptyProps.add(getQNameToPrefixString(entry.getKey()));
-    		}
-    		*/
-    		try {
-    			DefaultTypeConverter.INSTANCE.convert(entry.getValue().getDataType(), "");
-    		} catch (Exception e) {
-    			this.invalidEmptyProps.add(getQNameToPrefixString(entry.getKey()));
-    		}
-    	}
-    }
-    
-    private String getQNameToPrefixString(QName prop) {
-    	return prop.toPrefixString(this.serviceRegistry.getNamespaceService());
-    }
-    private QName getQNameFromPrefixString(String qnameStr) {
-    	return QName.createQName(qnameStr, this.serviceRegistry.getNamespaceService());
-    }
     
 }
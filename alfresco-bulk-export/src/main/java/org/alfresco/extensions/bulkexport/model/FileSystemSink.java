@@ -0,0 +1,108 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the export to the file system under the export folder, the default sink
+ */
+public class FileSystemSink implements ExportSink
+{
+    private static final Log log = LogFactory.getLog(FileSystemSink.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public boolean isLocal()
+    {
+        return true;
+    }
+
+    public void addDirectory(String path) throws IOException
+    {
+        File dir = new File(path);
+        if (!dir.exists())
+        {
+            // another export thread may have created it in the meantime
+            if (!dir.mkdirs() && !dir.isDirectory())
+            {
+                log.error("createFolder failed to create path : " + path);
+            }
+            else
+            {
+                log.debug("createFolder path : " + path);
+            }
+        }
+    }
+
+    public void addFile(String path, final byte[] data) throws IOException
+    {
+        addFile(path, data.length, new EntryWriter() {
+            public void write(OutputStream out) throws IOException
+            {
+                out.write(data);
+            }
+        });
+    }
+
+    public void addFile(String path, long size, EntryWriter writer) throws IOException
+    {
+        File file = new File(path);
+        addDirectory(file.getParent());
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try
+        {
+            writer.write(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public boolean addLink(String path, String target) throws IOException
+    {
+        try
+        {
+            Files.deleteIfExists(new File(path).toPath());
+            Files.createLink(new File(path).toPath(), new File(target).toPath());
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.debug("Can not link " + path + " to " + target + ": " + e.getMessage());
+        }
+        catch (UnsupportedOperationException e)
+        {
+            log.debug("Can not link " + path + " to " + target + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    public void close()
+    {
+        // nothing held open
+    }
+}
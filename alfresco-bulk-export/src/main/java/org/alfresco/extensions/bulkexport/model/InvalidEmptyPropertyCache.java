@@ -0,0 +1,139 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.alfresco.service.cmr.dictionary.ClassDefinition;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.dictionary.PropertyDefinition;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * For each type and aspect, the properties that can not be imported with an empty value, 
+ * eg. dates and numbers. They are read from the dictionary once and shared by every export 
+ * thread and job. An entry is read again when the dictionary returns a new definition of 
+ * its class, which happens when a model is deployed or reloaded.
+ */
+public class InvalidEmptyPropertyCache
+{
+    /** data types that accept an empty string, the properties of any other data type are invalid when empty */
+    private static final Set<QName> EMPTY_VALID_DATA_TYPES = new HashSet<QName>(Arrays.asList(
+            DataTypeDefinition.TEXT,
+            DataTypeDefinition.MLTEXT,
+            DataTypeDefinition.ANY,
+            DataTypeDefinition.BOOLEAN));
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Get the properties that are invalid when empty, one set for the type and one for each aspect
+     * 
+     * @param type type in prefix string format, may be null
+     * @param aspects aspects in prefix string format, may be null
+     * @param dictionaryService
+     * @param namespaceService
+     * @return {@link List} of sets of property names in prefix string format
+     */
+    public List<Set<String>> get(String type, List<String> aspects, DictionaryService dictionaryService, NamespaceService namespaceService)
+    {
+        List<Set<String>> sets = new ArrayList<Set<String>>((aspects == null ? 0 : aspects.size()) + 1);
+        if (type != null && !type.isEmpty())
+        {
+            sets.add(get(type, dictionaryService, namespaceService));
+        }
+        if (aspects != null)
+        {
+            for (String aspect : aspects)
+            {
+                sets.add(get(aspect, dictionaryService, namespaceService));
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * @param property property name in prefix string format
+     * @param sets returned by {@link #get(String, List, DictionaryService, NamespaceService)}
+     * @return true if one of the type or aspects does not accept the property empty
+     */
+    public static boolean isInvalidEmpty(String property, List<Set<String>> sets)
+    {
+        for (Set<String> set : sets)
+        {
+            if (set.contains(property))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> get(String className, DictionaryService dictionaryService, NamespaceService namespaceService)
+    {
+        Entry entry = entries.get(className);
+        if (entry != null && dictionaryService.getClass(entry.name) == entry.definition)
+        {
+            return entry.invalidEmptyProperties;
+        }
+
+        QName name = (entry != null) ? entry.name : QName.createQName(className, namespaceService);
+        entry = new Entry(name, dictionaryService.getClass(name), namespaceService);
+        entries.put(className, entry);
+        return entry.invalidEmptyProperties;
+    }
+
+    /**
+     * The invalid empty properties of one class, with the definition they were read from
+     */
+    private static class Entry
+    {
+        final QName name;
+        final ClassDefinition definition;
+        final Set<String> invalidEmptyProperties;
+
+        Entry(QName name, ClassDefinition definition, NamespaceService namespaceService)
+        {
+            this.name = name;
+            this.definition = definition;
+            if (definition == null)
+            {
+                this.invalidEmptyProperties = Collections.emptySet();
+                return;
+            }
+            Set<String> properties = new HashSet<String>();
+            for (Map.Entry<QName, PropertyDefinition> property : definition.getProperties().entrySet())
+            {
+                if (!EMPTY_VALID_DATA_TYPES.contains(property.getValue().getDataType().getName()))
+                {
+                    properties.add(property.getKey().toPrefixString(namespaceService));
+                }
+            }
+            this.invalidEmptyProperties = Collections.unmodifiableSet(properties);
+        }
+    }
+}
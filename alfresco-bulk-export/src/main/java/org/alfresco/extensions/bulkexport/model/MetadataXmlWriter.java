@@ -0,0 +1,159 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.alfresco.extensions.bulkexport.utils.XmlEscaper;
+
+/**
+ * Writes a metadata properties file for the Alfresco bulk import as its entries are given, 
+ * nothing is built in memory. Keys and values are escaped with {@link XmlEscaper}.
+ */
+public class MetadataXmlWriter implements Closeable
+{
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n<properties>";
+    private static final String FOOTER = "\n</properties>";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Writer out;
+    private boolean strippedInvalidCharacters = false;
+
+    /**
+     * Create the file and write the document header
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public MetadataXmlWriter(File file) throws IOException
+    {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Write the document header to a stream, it is closed with the writer
+     * 
+     * @param stream
+     * @throws IOException
+     */
+    public MetadataXmlWriter(OutputStream stream) throws IOException
+    {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        try
+        {
+            out.write(HEADER);
+        }
+        catch (IOException e)
+        {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a <code>&lt;entry key="..."&gt;</code> element
+     * 
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public void writeEntry(String key, String value) throws IOException
+    {
+        startEntry(key);
+        writeText(value);
+        endEntry();
+    }
+
+    /**
+     * Write a <code>&lt;entry key="..."&gt;</code> element holding the values separated by commas
+     * 
+     * @param key
+     * @param values
+     * @throws IOException
+     */
+    public void writeEntry(String key, List<String> values) throws IOException
+    {
+        startEntry(key);
+        boolean flag = false;
+        for (String value : values)
+        {
+            if (flag)
+            {
+                out.write(',');
+            }
+            writeText(value);
+            flag = true;
+        }
+        endEntry();
+    }
+
+    /**
+     * @return true if characters not allowed in XML 1.0 were stripped from what was written
+     */
+    public boolean hasStrippedInvalidCharacters()
+    {
+        return strippedInvalidCharacters;
+    }
+
+    /**
+     * Write the document footer and close the file
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            out.write(FOOTER);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void startEntry(String key) throws IOException
+    {
+        out.write("\n\t<entry key=\"");
+        if (XmlEscaper.writeAttribute(out, key))
+        {
+            strippedInvalidCharacters = true;
+        }
+        out.write("\">");
+    }
+
+    private void endEntry() throws IOException
+    {
+        out.write("</entry>");
+    }
+
+    private void writeText(String text) throws IOException
+    {
+        if (XmlEscaper.writeText(out, text))
+        {
+            strippedInvalidCharacters = true;
+        }
+    }
+}
@@ -0,0 +1,723 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the export to an S3 compatible object store, every file becomes the object named 
+ * <code>{prefix}{path relative to the export folder}</code>. Folders are not written, object stores have none.
+ * 
+ * Content is streamed from the repository to the store in one pass. A file is sent with a single PUT 
+ * when it fits one part, otherwise as a multipart upload whose parts are sent in parallel by a pool of 
+ * upload threads while the next parts are read. At most two parts per upload thread are held in memory, 
+ * a file being read waits when they are all in flight. A file is in the store when its call returns.
+ * 
+ * Requests are signed with AWS signature version 4 and use path style urls 
+ * (<code>{endpoint}/{bucket}/{key}</code>), so any S3 compatible store can be used, eg. MinIO.
+ */
+public class S3Sink implements ExportSink
+{
+    private static final Log log = LogFactory.getLog(S3Sink.class);
+
+    /** smallest part the S3 api accepts, but for the last one */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_UPLOAD_THREADS = 4;
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+    private static final int READ_TIMEOUT = 5 * 60 * 1000;
+    /** milliseconds to wait for a part buffer, twice the time a part takes to fail all its attempts */
+    private static final long BUFFER_TIMEOUT = 2L * MAX_ATTEMPTS * (CONNECT_TIMEOUT + READ_TIMEOUT);
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String basePath;
+    private final String endpoint;
+    private final String region;
+    private final String bucket;
+    private final String prefix;
+    private final String accessKey;
+    private final String secretKey;
+    private final int partSize;
+    private final ExecutorService uploads;
+
+    /** part buffers in memory, shared by every file being written */
+    private final Semaphore buffers;
+
+    /**
+     * @param basePath export folder, the root of the object names
+     * @param endpoint url of the store, eg. <code>https://s3.eu-west-1.amazonaws.com</code> or <code>http://localhost:9000</code>
+     * @param region region the requests are signed for
+     * @param bucket
+     * @param prefix start of every object name, may be empty
+     * @param accessKey
+     * @param secretKey
+     * @param partSize bytes of a multipart upload part, at least {@link #MIN_PART_SIZE}
+     * @param uploadThreads number of parts sent at the same time
+     */
+    public S3Sink(String basePath, String endpoint, String region, String bucket, String prefix, 
+            String accessKey, String secretKey, int partSize, int uploadThreads)
+    {
+        if (endpoint == null || endpoint.isEmpty() || bucket == null || bucket.isEmpty())
+        {
+            throw new IllegalArgumentException("An S3 endpoint and bucket are needed");
+        }
+        this.basePath = basePath;
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.region = (region == null || region.isEmpty()) ? "us-east-1" : region;
+        this.bucket = bucket;
+        this.prefix = (prefix == null) ? "" : prefix;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+
+        final int threads = Math.max(1, uploadThreads);
+        this.buffers = new Semaphore(threads * 2);
+        this.uploads = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "BulkExport-s3-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public boolean isLocal()
+    {
+        return false;
+    }
+
+    public void addDirectory(String path)
+    {
+        // object stores have no folders, the folder metadata file is an object of its own
+    }
+
+    public void addFile(String path, byte[] data) throws IOException
+    {
+        putObject(key(path), data, data.length);
+    }
+
+    public void addFile(String path, long size, EntryWriter writer) throws IOException
+    {
+        ObjectOutputStream out = new ObjectOutputStream(key(path), size);
+        try
+        {
+            writer.write(out);
+            out.finish();
+        }
+        finally
+        {
+            out.abortIfUnfinished();
+        }
+    }
+
+    /**
+     * Copy the object in the store, the content is not sent again
+     */
+    public boolean addLink(String path, String target) throws IOException
+    {
+        SortedMap<String, String> headers = new TreeMap<String, String>();
+        headers.put("x-amz-copy-source", "/" + bucket + "/" + encode(key(target), true));
+        try
+        {
+            Response response = request("PUT", key(path), "", headers, null, 0);
+            return !response.body.contains("<Error>");
+        }
+        catch (IOException e)
+        {
+            log.debug("Can not copy " + target + " to " + path + " in the store: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stop the upload threads, every file was written when its call returned
+     */
+    public void close() throws IOException
+    {
+        uploads.shutdown();
+        try
+        {
+            uploads.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String key(String path)
+    {
+        return prefix + FileFolder.relativePath(basePath, path);
+    }
+
+    private void putObject(String key, byte[] data, int length) throws IOException
+    {
+        request("PUT", key, "", new TreeMap<String, String>(), data, length);
+    }
+
+    private String createMultipartUpload(String key) throws IOException
+    {
+        Response response = request("POST", key, "uploads=", new TreeMap<String, String>(), new byte[0], 0);
+        String uploadId = element(response.body, "UploadId");
+        if (uploadId == null)
+        {
+            throw new IOException("No upload id for " + key + ": " + response.body);
+        }
+        return uploadId;
+    }
+
+    private String uploadPart(String key, String uploadId, int number, byte[] data, int length) throws IOException
+    {
+        Response response = request("PUT", key, "partNumber=" + number + "&uploadId=" + encode(uploadId, false), 
+                new TreeMap<String, String>(), data, length);
+        if (response.etag == null)
+        {
+            throw new IOException("No etag for part " + number + " of " + key);
+        }
+        return response.etag;
+    }
+
+    private void completeMultipartUpload(String key, String uploadId, List<String> etags) throws IOException
+    {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++)
+        {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                .append(etags.get(i).replace("&", "&amp;").replace("\"", "&quot;")).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+        Response response = request("POST", key, "uploadId=" + encode(uploadId, false), new TreeMap<String, String>(), body, body.length);
+        // the store may fail the upload after answering 200
+        if (response.body.contains("<Error>"))
+        {
+            throw new IOException("Multipart upload of " + key + " failed: " + response.body);
+        }
+    }
+
+    private void abortMultipartUpload(String key, String uploadId)
+    {
+        try
+        {
+            request("DELETE", key, "uploadId=" + encode(uploadId, false), new TreeMap<String, String>(), null, 0);
+        }
+        catch (IOException e)
+        {
+            log.warn("Multipart upload " + uploadId + " of " + key + " not aborted, its parts stay in the store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send a signed request, retried when the store can not be reached or answers with a server error
+     * 
+     * @param query canonical query string, its parameters sorted and encoded
+     * @param headers extra headers to sign, lower case names
+     */
+    private Response request(String method, String key, String query, SortedMap<String, String> headers, byte[] body, int length) throws IOException
+    {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++)
+        {
+            try
+            {
+                return send(method, key, query, headers, body, length);
+            }
+            catch (RejectedRequestException e)
+            {
+                throw e;
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            log.debug("S3 " + method + " " + key + " failed, attempt " + attempt + ": " + failure.getMessage());
+            try
+            {
+                Thread.sleep(1000L * attempt);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw failure;
+    }
+
+    private Response send(String method, String key, String query, SortedMap<String, String> extraHeaders, byte[] body, int length) throws IOException
+    {
+        String canonicalUri = "/" + bucket + "/" + encode(key, true);
+        URL url = new URL(endpoint + canonicalUri + (query.isEmpty() ? "" : "?" + query));
+        String payloadHash = hex(sha256(body, length));
+        String amzDate = AMZ_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+
+        SortedMap<String, String> headers = new TreeMap<String, String>(extraHeaders);
+        headers.put("host", (url.getPort() == -1) ? url.getHost() : url.getHost() + ":" + url.getPort());
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+        String authorization = authorization(accessKey, secretKey, region, method, canonicalUri, query, headers, payloadHash, amzDate);
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try
+        {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestMethod(method);
+            for (Map.Entry<String, String> header : headers.entrySet())
+            {
+                if (!header.getKey().equals("host"))
+                {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            connection.setRequestProperty("Authorization", authorization);
+            if (body != null)
+            {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(length);
+                OutputStream out = connection.getOutputStream();
+                try
+                {
+                    out.write(body, 0, length);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+
+            int code = connection.getResponseCode();
+            String responseBody = read((code >= 400) ? connection.getErrorStream() : connection.getInputStream());
+            if (code >= 500)
+            {
+                throw new IOException("S3 " + method + " " + key + " failed with " + code + ": " + responseBody);
+            }
+            if (code >= 300)
+            {
+                throw new RejectedRequestException("S3 " + method + " " + key + " rejected with " + code + ": " + responseBody);
+            }
+            return new Response(connection.getHeaderField("ETag"), responseBody);
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the value of the Authorization header of a request, AWS signature version 4
+     */
+    static String authorization(String accessKey, String secretKey, String region, String method, String canonicalUri, 
+            String canonicalQuery, SortedMap<String, String> headers, String payloadHash, String amzDate)
+    {
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet())
+        {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+            if (signedHeaders.length() > 0)
+            {
+                signedHeaders.append(';');
+            }
+            signedHeaders.append(header.getKey());
+        }
+        String canonicalRequest = method + "\n" + canonicalUri + "\n" + canonicalQuery + "\n" 
+                + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        byte[] canonicalBytes = canonicalRequest.getBytes(StandardCharsets.UTF_8);
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalBytes, canonicalBytes.length));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        return ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature;
+    }
+
+    private static byte[] hmac(byte[] key, String data)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data, int length)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (data != null)
+            {
+                digest.update(data, 0, length);
+            }
+            return digest.digest();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * URI encode as the signature expects, every byte but the unreserved characters
+     * 
+     * @param keepSlash true to keep the slashes of an object name
+     */
+    static String encode(String value, boolean keepSlash)
+    {
+        StringBuilder encoded = new StringBuilder(value.length() + 16);
+        for (byte b : value.getBytes(StandardCharsets.UTF_8))
+        {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') 
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (keepSlash && c == '/'))
+            {
+                encoded.append(c);
+            }
+            else
+            {
+                encoded.append('%').append(Character.toUpperCase(HEX[c >> 4])).append(Character.toUpperCase(HEX[c & 0xf]));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String element(String xml, String name)
+    {
+        int start = xml.indexOf("<" + name + ">");
+        int end = xml.indexOf("</" + name + ">");
+        if (start < 0 || end < start)
+        {
+            return null;
+        }
+        return xml.substring(start + name.length() + 2, end);
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        if (in == null)
+        {
+            return "";
+        }
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1)
+            {
+                out.write(buf, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static class Response
+    {
+        final String etag;
+        final String body;
+
+        Response(String etag, String body)
+        {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    /**
+     * The store refused the request, sending it again would not help
+     */
+    private static class RejectedRequestException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        RejectedRequestException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * Content of one object, sent with a single PUT if it fits a part, otherwise as a multipart upload
+     */
+    private class ObjectOutputStream extends OutputStream
+    {
+        private final String key;
+        private final List<Future<String>> parts = new ArrayList<Future<String>>();
+        private final List<Part> partBuffers = new ArrayList<Part>();
+        private byte[] buffer;
+        private int count = 0;
+        private String uploadId;
+        private boolean holdsBuffer = false;
+        private boolean finished = false;
+
+        ObjectOutputStream(String key, long size) throws IOException
+        {
+            this.key = key;
+            acquireBuffer();
+            this.holdsBuffer = true;
+            this.buffer = new byte[(int) Math.min(partSize, (size > 0) ? size : INITIAL_BUFFER_SIZE)];
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (count == buffer.length)
+                {
+                    if (buffer.length < partSize)
+                    {
+                        buffer = Arrays.copyOf(buffer, (int) Math.min(partSize, 2L * buffer.length));
+                    }
+                    else
+                    {
+                        sendPart(false);
+                    }
+                }
+                int length = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, length);
+                count += length;
+                off += length;
+                len -= length;
+            }
+        }
+
+        /**
+         * Send the buffer as the next part, it is released once sent
+         * 
+         * @param last true if no buffer is needed for a next part
+         */
+        private void sendPart(boolean last) throws IOException
+        {
+            if (uploadId == null)
+            {
+                uploadId = createMultipartUpload(key);
+            }
+            Part part = new Part(parts.size() + 1, buffer, count);
+            buffer = null;
+            holdsBuffer = false;
+            partBuffers.add(part);
+            parts.add(uploads.submit(part));
+            count = 0;
+            if (!last)
+            {
+                acquireBuffer();
+                holdsBuffer = true;
+                buffer = new byte[partSize];
+            }
+        }
+
+        private void acquireBuffer() throws IOException
+        {
+            try
+            {
+                if (!buffers.tryAcquire(BUFFER_TIMEOUT, TimeUnit.MILLISECONDS))
+                {
+                    throw new IOException("No part buffer freed in " + (BUFFER_TIMEOUT / 1000) + " s, the parts are not being sent");
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a part to be sent");
+            }
+        }
+
+        /**
+         * Send what is left and wait for the object to be in the store
+         */
+        void finish() throws IOException
+        {
+            if (uploadId == null)
+            {
+                putObject(key, buffer, count);
+            }
+            else
+            {
+                if (count > 0)
+                {
+                    sendPart(true);
+                }
+                List<String> etags = new ArrayList<String>(parts.size());
+                for (Future<String> part : parts)
+                {
+                    etags.add(waitFor(part));
+                }
+                completeMultipartUpload(key, uploadId, etags);
+            }
+            finished = true;
+        }
+
+        /**
+         * Release the buffer, and drop the parts already sent if the object was not written
+         */
+        void abortIfUnfinished()
+        {
+            if (holdsBuffer)
+            {
+                buffers.release();
+                holdsBuffer = false;
+            }
+            buffer = null;
+            if (finished || uploadId == null)
+            {
+                return;
+            }
+            for (int i = 0; i < parts.size(); i++)
+            {
+                // a part cancelled before it runs never reaches its own release
+                parts.get(i).cancel(false);
+                partBuffers.get(i).release();
+            }
+            abortMultipartUpload(key, uploadId);
+        }
+
+        /**
+         * One part of the multipart upload, its buffer permit is released once, by the upload or by an abort
+         */
+        private class Part implements Callable<String>
+        {
+            private final int number;
+            private final byte[] data;
+            private final int length;
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            Part(int number, byte[] data, int length)
+            {
+                this.number = number;
+                this.data = data;
+                this.length = length;
+            }
+
+            public String call() throws Exception
+            {
+                try
+                {
+                    return uploadPart(key, uploadId, number, data, length);
+                }
+                finally
+                {
+                    release();
+                }
+            }
+
+            void release()
+            {
+                if (released.compareAndSet(false, true))
+                {
+                    buffers.release();
+                }
+            }
+        }
+
+        private String waitFor(Future<String> part) throws IOException
+        {
+            try
+            {
+                return part.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the parts of " + key);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException)
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Part of " + key + " not sent", e.getCause());
+            }
+        }
+    }
+}
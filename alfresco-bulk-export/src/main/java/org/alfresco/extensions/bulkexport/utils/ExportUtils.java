@@ -1,15 +1,14 @@
 package org.alfresco.extensions.bulkexport.utils;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.extensions.bulkexport.controler.Engine;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.service.cmr.repository.StoreRef;
-import org.alfresco.service.cmr.search.ResultSet;
-import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,45 +38,47 @@ public class ExportUtils {
     	}
     }
     
-	public static List<NodeRef> executeQuery(String query, SearchService searchService, Engine engine) throws IOException {
-		return executeQuery(query, -1, searchService, engine);
+	/**
+	 * Search the nodes lazily, pageSize at a time as the returned iterator is consumed
+	 */
+	public static Iterator<NodeRef> executeQuery(String query, QueryLanguage language, int pageSize, SearchService searchService, Engine engine) {
+		return new QueryResultIterator(query, language, pageSize, searchService, engine);
 	}
 	
-	public static List<NodeRef> executeQuery(String query, int maxItems, SearchService searchService, Engine engine) throws IOException {
-		int skip = 0;
-		AtomicInteger totalResults = new AtomicInteger();
-		boolean keepSearching = true;
-		List<NodeRef> nodes = new ArrayList<NodeRef>();
-		SearchParameters sp = new SearchParameters();
-		sp.setSkipCount(skip);
-		sp.setQuery(query);
-		sp.setMaxItems(((maxItems == -1) || (maxItems >= PAGE_SIZE)) ? PAGE_SIZE : maxItems);
-	    sp.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
-		sp.setLanguage(SearchService.LANGUAGE_LUCENE);
-
-		ResultSet rs = searchService.query(sp);
-		while ((null != rs) && (rs.length() > 0) && keepSearching && !engine.isCancelExport()){
-			try {
-				for (int i = 0; i < rs.length(); i++) {
-					nodes.add(rs.getRow(i).getNodeRef());
-					totalResults.incrementAndGet();
-					logInBatch(totalResults);
-					if (( maxItems > -1) && (totalResults.get() >= maxItems)) {
-						keepSearching = false;
-					}
-				}
-				sp.setSkipCount(sp.getSkipCount() + rs.length());
-			} finally {
-				if (null != rs) {
-					rs.close();
-				}
-			}
-			rs = searchService.query(sp);
-		} 
-		if (null != rs) {
-			rs.close();
+	/**
+	 * Parse a date given to the export, as in 2017-03-01T00:00:00 or 2017-03-01, in the time zone of the server
+	 * 
+	 * @return null if no date is given
+	 * @throws java.time.format.DateTimeParseException if the date cannot be parsed
+	 */
+	public static Date parseDate(String date) {
+		if (date == null || date.isEmpty()) {
+			return null;
 		}
-
-		return nodes;
+		LocalDateTime dateTime = (date.indexOf('T') < 0) ? LocalDate.parse(date).atStartOfDay() : LocalDateTime.parse(date);
+		return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+	}
+	
+	/**
+	 * 64 bit FNV-1a hash of the text, finished with {@link #mix(long)} so every bit of the result 
+	 * depends on every character. Never 0, which the open addressing tables use to mark a free slot.
+	 */
+	public static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash = mix(hash);
+		return (hash == 0) ? 1 : hash;
+	}
+	
+	/**
+	 * Finalizer of MurmurHash3, spreads the bits of a value evenly over the 64 bits of the result
+	 */
+	public static long mix(long value) {
+		value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+		value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return value ^ (value >>> 33);
 	}
 }
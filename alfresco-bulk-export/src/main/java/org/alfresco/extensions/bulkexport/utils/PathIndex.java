@@ -0,0 +1,239 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Set of the paths found under the export folder, so the checks for files already exported are answered 
+ * from memory instead of one <code>File.exists</code> call, a network round trip on NFS or SMB, per file.
+ * 
+ * The folder is scanned once when the export starts, every directory is listed by its own task so the 
+ * listings run in parallel. Paths are kept as 64 bit hashes in an open addressing table split in segments 
+ * with their own lock, 12 to 23 bytes per path. Two paths only share a hash by chance, with 10 million 
+ * paths the odds of any such collision are below one in a hundred thousand. Files written by the export 
+ * are added as they are written.
+ */
+public class PathIndex
+{
+    private static final Log log = LogFactory.getLog(PathIndex.class);
+
+    public static final int DEFAULT_SCAN_THREADS = 8;
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_SEGMENT_SLOTS = 1024;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    public PathIndex()
+    {
+        for (int i = 0; i < segments.length; i++)
+        {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Index the files and directories under a folder
+     * 
+     * @param root the export folder, an empty index is returned if it does not exist
+     * @param threads number of directories listed at once
+     * @return {@link PathIndex}
+     */
+    public static PathIndex scan(File root, int threads)
+    {
+        final PathIndex index = new PathIndex();
+        if (!root.isDirectory())
+        {
+            return index;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try
+        {
+            pool.invoke(new ScanDirectory(index, root));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return index;
+    }
+
+    /**
+     * @param path full path of a file or directory
+     * @return true if the path was found by the scan or added since
+     */
+    public boolean contains(String path)
+    {
+        long hash = ExportUtils.hash(new File(path).getPath());
+        return segmentOf(hash).contains(hash);
+    }
+
+    /**
+     * @param path full path of a file or directory written by the export
+     */
+    public void add(String path)
+    {
+        long hash = ExportUtils.hash(new File(path).getPath());
+        segmentOf(hash).add(hash);
+    }
+
+    /**
+     * @return number of paths in the index
+     */
+    public long size()
+    {
+        long size = 0;
+        for (Segment segment : segments)
+        {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentOf(long hash)
+    {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    /**
+     * Lists one directory, adds its entries and scans its sub directories in tasks of their own
+     */
+    private static class ScanDirectory extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final PathIndex index;
+        private final File directory;
+
+        ScanDirectory(PathIndex index, File directory)
+        {
+            this.index = index;
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute()
+        {
+            List<ScanDirectory> subDirectories = new ArrayList<ScanDirectory>();
+            try
+            {
+                DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath());
+                try
+                {
+                    for (Path entry : entries)
+                    {
+                        File file = new File(directory, entry.getFileName().toString());
+                        index.add(file.getPath());
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))
+                        {
+                            subDirectories.add(new ScanDirectory(index, file));
+                        }
+                    }
+                }
+                finally
+                {
+                    entries.close();
+                }
+            }
+            catch (IOException e)
+            {
+                // the files of the directory are exported again
+                log.warn("Could not list " + directory.getPath() + ": " + e.getMessage());
+            }
+            invokeAll(subDirectories);
+        }
+    }
+
+    /**
+     * Open addressing table of path hashes
+     */
+    private static class Segment
+    {
+        private long[] slots = new long[INITIAL_SEGMENT_SLOTS];
+        private int size = 0;
+
+        synchronized boolean contains(long hash)
+        {
+            int mask = slots.length - 1;
+            for (int slot = (int) hash & mask; slots[slot] != 0; slot = (slot + 1) & mask)
+            {
+                if (slots[slot] == hash)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void add(long hash)
+        {
+            if (insert(slots, hash))
+            {
+                size++;
+                if (size > slots.length * LOAD_FACTOR)
+                {
+                    long[] grown = new long[slots.length * 2];
+                    for (long slotHash : slots)
+                    {
+                        if (slotHash != 0)
+                        {
+                            insert(grown, slotHash);
+                        }
+                    }
+                    slots = grown;
+                }
+            }
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        /**
+         * @return false if the hash was already in the table
+         */
+        private static boolean insert(long[] table, long hash)
+        {
+            int mask = table.length - 1;
+            int slot = (int) hash & mask;
+            for (; table[slot] != 0; slot = (slot + 1) & mask)
+            {
+                if (table[slot] == hash)
+                {
+                    return false;
+                }
+            }
+            table[slot] = hash;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.utils;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.search.SearchService;
+
+/**
+ * How the nodes modified between two dates are discovered. Which one is fastest depends on the index, 
+ * PATH queries are cheap on the embedded lucene index but slow on Solr, where ANCESTOR and IN_TREE are not.
+ */
+public enum QueryLanguage
+{
+    /** lucene PATH query, the default */
+    LUCENE(SearchService.LANGUAGE_LUCENE),
+    /** alfresco full text search with ANCESTOR */
+    FTS(SearchService.LANGUAGE_FTS_ALFRESCO),
+    /** CMIS query with IN_TREE, paged by skip count as CMIS cannot sort on the node dbid */
+    CMIS(SearchService.LANGUAGE_CMIS_ALFRESCO),
+    /** no index, the tree is walked through the database and cm:modified compared on each node */
+    DB(null);
+
+    private static final DateTimeFormatter CMIS_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private final String searchLanguage;
+
+    private QueryLanguage(String searchLanguage)
+    {
+        this.searchLanguage = searchLanguage;
+    }
+
+    /**
+     * @param value case insensitive name, may be null or empty
+     * @return the language, {@link #LUCENE} when no value is given
+     * @throws IllegalArgumentException if the value is not a language
+     */
+    public static QueryLanguage parse(String value)
+    {
+        if (value == null || value.isEmpty())
+        {
+            return LUCENE;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return language given to the {@link SearchService}, null for {@link #DB}
+     */
+    public String getSearchLanguage()
+    {
+        return searchLanguage;
+    }
+
+    /**
+     * @return false if the nodes are not found by the {@link SearchService}
+     */
+    public boolean isSearched()
+    {
+        return this != DB;
+    }
+
+    /**
+     * @return true if the results can be paged by <code>sys:node-dbid</code> instead of a skip count
+     */
+    public boolean isPagedByDbid()
+    {
+        return this == LUCENE || this == FTS;
+    }
+
+    /**
+     * Restrict a query to the nodes with a higher dbid than the last one returned
+     * 
+     * @param query
+     * @param lastId
+     * @return {@link String}
+     */
+    public String afterDbid(String query, long lastId)
+    {
+        return withinDbids(query, lastId + 1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Restrict a query to the nodes whose dbid is in <code>[lo, hi)</code>
+     * 
+     * @param query
+     * @param lo
+     * @param hi {@link Long#MAX_VALUE} for no upper bound
+     * @return {@link String}
+     */
+    public String withinDbids(String query, long lo, long hi)
+    {
+        String range = "[" + lo + " TO " + (hi == Long.MAX_VALUE ? "MAX" : String.valueOf(hi - 1)) + "]";
+        switch (this)
+        {
+            case LUCENE:
+                return "(" + query + ") AND @sys\\:node\\-dbid:" + range;
+            case FTS:
+                return "(" + query + ") AND @sys:node\\-dbid:" + range;
+            default:
+                throw new UnsupportedOperationException(this + " queries cannot be restricted by dbid");
+        }
+    }
+
+    /**
+     * Build the queries finding the nodes under the root node modified between the dates, 
+     * CMIS needs one query for the folders and one for the documents.
+     * 
+     * @param rootNode
+     * @param path prefixed path of the root node
+     * @param fromDate may be null or empty
+     * @param toDate may be null or empty
+     * @return {@link List} of queries
+     */
+    public List<String> modifiedQueries(NodeRef rootNode, String path, String fromDate, String toDate)
+    {
+        boolean hasFrom = fromDate != null && !fromDate.isEmpty();
+        boolean hasTo = toDate != null && !toDate.isEmpty();
+        List<String> queries = new ArrayList<String>(2);
+        switch (this)
+        {
+            case LUCENE:
+                queries.add("PATH:\"" + path + "//*\" AND +@cm\\:modified:[" 
+                        + (hasFrom ? "\"" + fromDate + "\"" : "MIN") + " TO " + (hasTo ? "\"" + toDate + "\"" : "MAX") + "]");
+                break;
+            case FTS:
+                queries.add("ANCESTOR:\"" + rootNode + "\" AND @cm:modified:[" 
+                        + (hasFrom ? "\"" + fromDate + "\"" : "MIN") + " TO " + (hasTo ? "\"" + toDate + "\"" : "MAX") + "]");
+                break;
+            case CMIS:
+                StringBuilder where = new StringBuilder(" WHERE IN_TREE('" + rootNode + "')");
+                if (hasFrom)
+                {
+                    where.append(" AND cmis:lastModificationDate >= TIMESTAMP '" + cmisTimestamp(fromDate) + "'");
+                }
+                if (hasTo)
+                {
+                    where.append(" AND cmis:lastModificationDate <= TIMESTAMP '" + cmisTimestamp(toDate) + "'");
+                }
+                queries.add("SELECT cmis:objectId FROM cmis:folder" + where + " ORDER BY cmis:objectId");
+                queries.add("SELECT cmis:objectId FROM cmis:document" + where + " ORDER BY cmis:objectId");
+                break;
+            default:
+                throw new UnsupportedOperationException(this + " nodes are not searched");
+        }
+        return queries;
+    }
+
+    private static String cmisTimestamp(String date)
+    {
+        return CMIS_TIMESTAMP.format(ExportUtils.parseDate(date).toInstant().atZone(ZoneId.systemDefault()));
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.alfresco.extensions.bulkexport.controler.Engine;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.LimitBy;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.ResultSetRow;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Iterates over the results of a search one page at a time, a page is only searched when the previous one 
+ * has been consumed. Results are sorted by <code>sys:node-dbid</code> and every page asks for the ids above 
+ * the last one returned, instead of skipping the previous results, so the last page costs the same as the first. 
+ * CMIS queries cannot be sorted on the dbid, they are paged by skip count and sorted by the query itself.
+ * 
+ * A page shorter than the page size only ends the search when the search was not limited: the permission 
+ * checks (<code>system.acl.maxPermissionChecks</code> and the check time limit) can cut a page short while 
+ * more results remain, the search then goes on from the last result returned.
+ * 
+ * The time taken by every page is logged, to compare the query languages on a given index.
+ */
+public class QueryResultIterator implements Iterator<NodeRef>
+{
+    private static final Log log = LogFactory.getLog(QueryResultIterator.class);
+
+    private static final String DBID_SORT = "@" + ContentModel.PROP_NODE_DBID.toString();
+
+    private final String query;
+    private final QueryLanguage language;
+    private final int pageSize;
+    private final SearchService searchService;
+    private final Engine engine;
+
+    private List<NodeRef> page = new ArrayList<NodeRef>();
+    private int index = 0;
+    private long lastId = -1;
+    private boolean lastPage = false;
+    private int pageCount = 0;
+    private int skipCount = 0;
+    private long searchTime = 0;
+
+    /**
+     * @param query
+     * @param language language of the query, it must be searched
+     * @param pageSize number of results searched at once
+     * @param searchService
+     * @param engine the search stops when its export is cancelled
+     */
+    public QueryResultIterator(String query, QueryLanguage language, int pageSize, SearchService searchService, Engine engine)
+    {
+        this.query = query;
+        this.language = language;
+        this.pageSize = pageSize;
+        this.searchService = searchService;
+        this.engine = engine;
+    }
+
+    public boolean hasNext()
+    {
+        if (index < page.size())
+        {
+            return true;
+        }
+        if (lastPage || engine.isCancelExport())
+        {
+            return false;
+        }
+        nextPage();
+        return index < page.size();
+    }
+
+    public NodeRef next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return page.get(index++);
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private void nextPage()
+    {
+        SearchParameters sp = new SearchParameters();
+        if (language.isPagedByDbid())
+        {
+            sp.setQuery(language.afterDbid(query, lastId));
+            sp.addSort(DBID_SORT, true);
+        }
+        else
+        {
+            sp.setQuery(query);
+            sp.setSkipCount(skipCount);
+        }
+        sp.setMaxItems(pageSize);
+        sp.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+        sp.setLanguage(language.getSearchLanguage());
+
+        page = new ArrayList<NodeRef>(pageSize);
+        index = 0;
+        long start = System.currentTimeMillis();
+        ResultSet rs = searchService.query(sp);
+        LimitBy limitedBy;
+        try
+        {
+            limitedBy = rs.getResultSetMetaData().getLimitedBy();
+            for (ResultSetRow row : rs)
+            {
+                page.add(row.getNodeRef());
+                if (language.isPagedByDbid())
+                {
+                    lastId = dbid(row);
+                }
+            }
+        }
+        finally
+        {
+            rs.close();
+        }
+        long time = System.currentTimeMillis() - start;
+        searchTime += time;
+        pageCount++;
+        skipCount += page.size();
+        lastPage = page.isEmpty() || (page.size() < pageSize && limitedBy == LimitBy.UNLIMITED);
+        log.info(language + " search page " + pageCount + " returned " + page.size() + " nodes in " + time + " ms, " 
+                + skipCount + " nodes in " + searchTime + " ms so far" + (limitedBy != LimitBy.UNLIMITED ? ", limited by " + limitedBy : ""));
+    }
+
+    private static long dbid(ResultSetRow row)
+    {
+        Serializable dbid = row.getValue(ContentModel.PROP_NODE_DBID);
+        if (dbid == null)
+        {
+            throw new IllegalStateException("Search result has no " + ContentModel.PROP_NODE_DBID + ": " + row.getNodeRef());
+        }
+        return ((Number) dbid).longValue();
+    }
+}
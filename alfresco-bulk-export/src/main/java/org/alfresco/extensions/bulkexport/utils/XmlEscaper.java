@@ -0,0 +1,116 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escapes text for XML 1.0 in a single pass, with the replacements looked up in tables built once. 
+ * Runs of characters that need no change are written as they are, so clean values cost no allocation. 
+ * Characters that are not allowed in XML 1.0 are stripped.
+ * 
+ * <pre>
+ * #x9 | #xA | #xD | [#x20-#xD7FF] | [#xE000-#xFFFD] | [#x10000-#x10FFFF]
+ * </pre>
+ */
+public class XmlEscaper {
+
+    /** marks a character stripped from the output */
+    private static final String STRIP = "";
+
+    /** replacement of each ASCII character in element content, null when it is written as is */
+    private static final String[] TEXT = new String[128];
+
+    /** replacement of each ASCII character in a double quoted attribute value */
+    private static final String[] ATTRIBUTE = new String[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            TEXT[c] = STRIP;
+        }
+        TEXT['\t'] = null;
+        TEXT['\n'] = null;
+        TEXT['\r'] = null;
+        TEXT['&'] = "&amp;";
+        TEXT['<'] = "&lt;";
+        TEXT['>'] = "&gt;";
+
+        System.arraycopy(TEXT, 0, ATTRIBUTE, 0, TEXT.length);
+        ATTRIBUTE['"'] = "&quot;";
+        // an attribute value parser would turn white space into plain spaces
+        ATTRIBUTE['\t'] = "&#9;";
+        ATTRIBUTE['\n'] = "&#10;";
+        ATTRIBUTE['\r'] = "&#13;";
+    }
+
+    /**
+     * Write the value as element content
+     * 
+     * @return true if characters not allowed in XML 1.0 were stripped
+     */
+    public static boolean writeText(Writer out, String value) throws IOException {
+        return write(out, value, TEXT);
+    }
+
+    /**
+     * Write the value as the content of a double quoted attribute
+     * 
+     * @return true if characters not allowed in XML 1.0 were stripped
+     */
+    public static boolean writeAttribute(Writer out, String value) throws IOException {
+        return write(out, value, ATTRIBUTE);
+    }
+
+    private static boolean write(Writer out, String value, String[] replacements) throws IOException {
+        boolean stripped = false;
+        int length = value.length();
+        // start of the run of characters written as they are
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < 128) {
+                replacement = replacements[c];
+                if (replacement == null) {
+                    continue;
+                }
+            } else if (c < 0xD800 || c >= 0xE000 && c <= 0xFFFD) {
+                continue;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+                continue;
+            } else {
+                replacement = STRIP;
+            }
+
+            if (i > start) {
+                out.write(value, start, i - start);
+            }
+            if (replacement == STRIP) {
+                stripped = true;
+            } else {
+                out.write(replacement);
+            }
+            start = i + 1;
+        }
+        if (start < length) {
+            out.write(value, start, length - start);
+        }
+        return stripped;
+    }
+}
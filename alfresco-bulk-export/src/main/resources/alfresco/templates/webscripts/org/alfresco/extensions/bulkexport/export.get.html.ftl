@@ -52,6 +52,7 @@
    		<script>
    			var jobsStatusMonitor;
    			var job;
+   			var submittedJobId;
    			$(document).ready(function() {
    				startJobsStatusMonitor();
   			});
@@ -64,28 +65,61 @@
 			}
 			function getJobsInfo() {
 				$.getJSON('${url.service}?format=json', function(data) {
-					if(data.jobs === undefined) {
-          				//hideElement(document.getElementById('jobs-block'));
-          				hideElement(document.getElementById('jobsField'));
+					if(data.jobList === undefined) {
+          				renderJobs([]);
           				clearInterval(jobsStatusMonitor);
+          				showJobOutput();
 					} else {
-          				//document.getElementById('jobsLabel').innerHTML = data.jobs
-          				//document.getElementById('jobsCancel').onclick = function(){cancel(data.jobs)}; 
-          				//document.getElementById('jobsCancel').value = 'Stop export';
-          				$('#jobsLabel').html(data.jobs);
-          				$('#jobsCancel').click(function(){cancel(data.jobs)}); 
-          				$('#jobsCancel').val('Stop Export');
-          				$('#totalNodesToExport').html(data.totalNodesToExport);
-          				$('#availableNodesToExport').html(data.availableNodesToExport);
-          				$('#previouslyExportedNodes').html(data.previouslyExportedNodes);
-       					//showElement(document.getElementById('jobs-block'), false);
-       					showElement(document.getElementById('jobsField'), true);
+          				renderJobs(data.jobList);
 					}
 				})
 				.fail(function(jqxhr, textStatus, error) {
 					document.getElementById("exportOutput").innerHTML = "Unexpected Error:"+error;
 				});
 			}
+			// one row for every running job, with a button to stop it
+			function renderJobs(jobList) {
+				var rows = $('#jobsTable tbody');
+				rows.empty();
+				if(jobList.length == 0) {
+					rows.append($('<tr/>').append($('<td colspan="9"/>').text('No Jobs')));
+					return;
+				}
+				$.each(jobList, function(i, job) {
+					var row = $('<tr/>');
+					row.append($('<td/>').text(job.jobId));
+					row.append($('<td/>').text(job.state + ' / ' + job.phase));
+					row.append($('<td/>').text(job.done + ' / ' + job.total));
+					row.append($('<td/>').text(job.remaining));
+					row.append($('<td/>').text(job.nodesPerSecond));
+					row.append($('<td/>').text((job.bytesPerSecond / 1048576).toFixed(2)));
+					row.append($('<td/>').text(formatSeconds(job.elapsed)));
+					row.append($('<td/>').text(job.eta < 0 ? 'N/A' : formatSeconds(job.eta)));
+					var stop = $('<input type="button" value="Stop Export"/>');
+					stop.click(function(){cancel(job.jobId)});
+					row.append($('<td/>').append(stop));
+					rows.append(row);
+				});
+			}
+			function formatSeconds(seconds) {
+				var h = Math.floor(seconds / 3600);
+				var m = Math.floor(seconds % 3600 / 60);
+				var s = seconds % 60;
+				return h + ':' + (m < 10 ? '0' : '') + m + ':' + (s < 10 ? '0' : '') + s;
+			}
+			function showJobOutput() {
+				if(submittedJobId === undefined) {
+					return;
+				}
+				// the last submitted job is done, show its output
+				$.getJSON('${url.service}?format=json&jobId='+encodeURIComponent(submittedJobId), function(data) {
+					if ( data && data.output ) {
+						var outputHtml = data.output.replace(/(?:\\r\\n|\\r|\\n)/g, '<br />');
+	   					document.getElementById("exportOutput").innerHTML = outputHtml;
+	   				}
+				});
+				submittedJobId = undefined;
+			}
 			function hideElement(element) {
 			  element.style.display = "none";
 			}
@@ -122,21 +156,29 @@
       	 		var exportversions = document.getElementById("exportVersions").checked;
       	 		var revisionhead = document.getElementById("revisionHead").checked;
       	 		var usenodecache = document.getElementById("useNodeCache").checked;
-         		var exportJsonUrl = '${url.service}?format=json&nodeRef='+noderef+'&aspects='+aspects+'&properties='+properties+'&updateTypesOrAspectsOrProperties='+updateTypesOrAspectsOrProperties+'&updateModelPrefix='+updateModelPrefix+'&fromDate='+fromDate+'&toDate='+toDate+'&base='+base+'&ignoreExported='+ignoreexported+'&exportVersions='+exportversions+'&revisionHead='+revisionhead+'&useNodeCache='+usenodecache;
+      	 		var threads = document.getElementById("threads").value;
+      	 		var linkcontent = document.getElementById("linkContent").checked;
+      	 		var querylanguage = document.getElementById("queryLanguage").value;
+      	 		var dedupcontent = document.getElementById("dedupContent").value;
+      	 		var archive = document.getElementById("archive").value;
+      	 		var archivevolumesize = document.getElementById("archiveVolumeSize").value;
+      	 		var sink = document.getElementById("sink").value;
+      	 		var s3prefix = document.getElementById("s3Prefix").value;
+      	 		var pagesize = document.getElementById("pageSize").value;
+      	 		var partition = document.getElementById("partition").value;
+         		var exportJsonUrl = '${url.service}?format=json&nodeRef='+noderef+'&aspects='+aspects+'&properties='+properties+'&updateTypesOrAspectsOrProperties='+updateTypesOrAspectsOrProperties+'&updateModelPrefix='+updateModelPrefix+'&fromDate='+fromDate+'&toDate='+toDate+'&base='+base+'&ignoreExported='+ignoreexported+'&exportVersions='+exportversions+'&revisionHead='+revisionhead+'&useNodeCache='+usenodecache+'&threads='+threads+'&linkContent='+linkcontent+'&dedupContent='+dedupcontent+'&archive='+archive+'&archiveVolumeSize='+archivevolumesize+'&sink='+sink+'&s3Prefix='+encodeURIComponent(s3prefix)+'&queryLanguage='+querylanguage+'&pageSize='+pagesize+'&partition='+partition;
 				$.getJSON(exportJsonUrl, function(data) {
 					if ( ! data ) 
 						return;
 					
+					if ( data.jobId )
+						submittedJobId = data.jobId;
 					if ( data.output ) {	
 						var outputHtml = data.output.replace(/(?:\\r\\n|\\r|\\n)/g, '<br />');
 	   					document.getElementById("exportOutput").innerHTML = outputHtml;
 	   				}
-	   				if ( data.totalNodesToExport )
-      					$('#totalNodesToExport').html(data.totalNodesToExport);
-					if ( data.availableNodesToExport )
-						$('#availableNodesToExport').html(data.availableNodesToExport);
-					if ( data.previouslyExportedNodes )
-						$('#previouslyExportedNodes').html(data.previouslyExportedNodes);
+					if ( data.jobList )
+						renderJobs(data.jobList);
 				})
 				.fail(function(jqxhr, textStatus, error) {
 					document.getElementById("exportOutput").innerHTML = "Unexpected Error on export:"+error;
@@ -161,15 +203,35 @@
 	        <p><label for="exportVersions">Export Versions:</label> <div class="tooltip"><input type="checkbox" id="exportVersions" name="exportVersions" value="true" unchecked/> <span class="tooltiptext">checked means that we should export all versions of the nodes</span></div></p>
 	        <p><label for="revisionHead">Revision Head:</label> <div class="tooltip"><input type="checkbox" id="revisionHead" name="revisionHead" value="true" unchecked/> <span class="tooltiptext">checked (and exportVersion=true) means that the head revision will be numbered. unchecked means the default version numbering scheme is used</span></div></p>
 	        <p><label for="useNodeCache">Use Node Cache:</label><div class="tooltip"> <input type="checkbox" id="useNodeCache" name="useNodeCache" value="true" unchecked/> <span class="tooltiptext">checked means that the list of nodes are cached to the export base for future use</span></div></p>
+	        <p><label for="threads">Threads:</label><div class="tooltip"> <input type="number" id="threads" name="threads" min="1" value="1" size="10" /><span class="tooltiptext">Number of threads exporting nodes in parallel, 1 exports on a single thread</span></div></p>
+	        <p><label for="linkContent">Link Content:</label><div class="tooltip"> <input type="checkbox" id="linkContent" name="linkContent" value="true" unchecked/> <span class="tooltiptext">checked means that content in a file content store is hard linked instead of copied, the exported files must not be modified</span></div></p>
+	        <p><label for="dedupContent">Deduplicate Content:</label><div class="tooltip"> <select id="dedupContent" name="dedupContent"><option value="none" selected>No</option><option value="link">Link or copy the first file</option><option value="manifest">List in the dedup manifest</option></select><span class="tooltiptext">What is done with a content already exported to another file of the export, eg. a multi filed or copied document</span></div></p>
+	        <p><label for="archive">Archive:</label><div class="tooltip"> <select id="archive" name="archive"><option value="none" selected>No, write files</option><option value="tar">tar</option><option value="tgz">tar.gz</option><option value="zip">zip</option></select><span class="tooltiptext">Stream the exported files into archive volumes in the export folder instead of writing every file</span></div></p>
+	        <p><label for="archiveVolumeSize">Archive Volume Size (MB):</label><div class="tooltip"> <input type="number" id="archiveVolumeSize" name="archiveVolumeSize" min="1" value="1024" size="10" /><span class="tooltiptext">Size of an archive volume before the next one is started</span></div></p>
+	        <p><label for="sink">Write To:</label><div class="tooltip"> <select id="sink" name="sink"><option value="file" selected>Export folder</option><option value="s3">S3 object store</option></select><span class="tooltiptext">The S3 compatible object store is configured on the webscript bean, the export folder still holds the node cache and journals</span></div></p>
+	        <p><label for="s3Prefix">S3 Prefix:</label><div class="tooltip"> <input type="text" id="s3Prefix" name="s3Prefix" size="20" /><span class="tooltiptext">Start of the object names, eg. export-2024/</span></div></p>
+	        <p><label for="queryLanguage">Query Language:</label><div class="tooltip"> <select id="queryLanguage" name="queryLanguage"><option value="lucene" selected>Lucene PATH</option><option value="fts">FTS ANCESTOR</option><option value="cmis">CMIS IN_TREE</option><option value="db">Database walk</option></select><span class="tooltiptext">How the nodes modified between the dates are found, the discovery time of every page is logged to compare them</span></div></p>
+	        <p><label for="pageSize">Page Size:</label><div class="tooltip"> <input type="number" id="pageSize" name="pageSize" min="1" value="500" size="10" /><span class="tooltiptext">Number of nodes searched at once when exporting by date</span></div></p>
+	        <p><label for="partition">Partition:</label><div class="tooltip"> <input type="text" id="partition" name="partition" size="20" /><span class="tooltiptext">Export only a part of the nodes: lo-hi for the node dbids from lo to hi excluded, or k/N for hash bucket k of N (Eg: 0-500000 or 3/8)</span></div></p>
 	      </fieldset>
 	      <p><button type="button" onclick="exportJob();">Initiate Bulk Export</button></p>
 	    </form>
 		<div id='jobs-block' class='jobStatusStyle'>
 	      <fieldset><legend>Running Job Status</legend>
-	      	<p id='jobsField' style='display:none'><label for='jobsCancel' id='jobsLabel'>No Jobs</label><input type='button' id='jobsCancel' value='Oops..You should not see this'/></p>
-		    <p><label for='totalNodesToExport' id='totalNodesToExportLabel'>Total number of nodes to export:</label><label id='totalNodesToExport'>N/A</label></p>
-		    <p><label for='availableNodesToExport' id='availableNodesToExportLabel'>Available number of nodes to still export:</label><label id='availableNodesToExport'>N/A</label></p>
-		    <p><label for='previouslyExportedNodes' id='previouslyExportedNodeslabel'>Previously exported Nodes count:</label><label id='previouslyExportedNodes'>N/A</label></p>
+	        <table id='jobsTable'>
+	          <thead>
+	            <tr><th>Job</th><th>State / Phase</th><th>Done / Total</th><th>Remaining</th><th>Nodes/s</th><th>MB/s</th><th>Elapsed</th><th>ETA</th><th></th></tr>
+	          </thead>
+	          <tbody>
+	          <#if jobList??>
+	            <#list jobList as job>
+	            <tr><td>${job.jobId?html}</td><td>${job.state} / ${job.phase}</td><td>${job.done?c} / ${job.total?c}</td><td>${job.remaining?c}</td><td>${job.nodesPerSecond?c}</td><td>${(job.bytesPerSecond / 1048576)?string("0.00")}</td><td>${job.elapsed?c} s</td><td><#if (job.eta < 0)>N/A<#else>${job.eta?c} s</#if></td><td></td></tr>
+	            </#list>
+	          <#else>
+	            <tr><td colspan="9">No Jobs</td></tr>
+	          </#if>
+	          </tbody>
+	        </table>
 	      </fieldset>
    		</div>
     	<div id="exportOutput"></div>
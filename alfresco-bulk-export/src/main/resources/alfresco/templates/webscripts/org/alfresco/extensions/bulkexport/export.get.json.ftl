@@ -1,4 +1,19 @@
 [#ftl]
+[#macro stageList stages]
+[
+    [#list stages as stage]
+    {
+      "name" : "${stage.name}",
+      "count" : ${stage.count?c},
+      "totalMillis" : ${stage.totalMillis?c},
+      "meanMicros" : ${stage.meanMicros?c},
+      "p50Micros" : ${stage.p50Micros?c},
+      "p90Micros" : ${stage.p90Micros?c},
+      "p99Micros" : ${stage.p99Micros?c},
+      "maxMicros" : ${stage.maxMicros?c}
+    }[#if stage_has_next],[/#if]
+    [/#list]
+  ][/#macro]
 {
   [#if output??]
   "output" : "${output}"
@@ -27,4 +42,47 @@
   [#if previouslyExportedNodes??]
   "previouslyExportedNodes" : "${previouslyExportedNodes}"
   [/#if]
+  [#if (output?? || jobs?? || totalNodesToExport?? || availableNodesToExport?? || previouslyExportedNodes??) && jobId??]
+  ,
+  [/#if]
+  [#if jobId??]
+  "jobId" : "${jobId?js_string}"
+  [/#if]
+  [#if (output?? || jobs?? || totalNodesToExport?? || availableNodesToExport?? || previouslyExportedNodes?? || jobId??) && state??]
+  ,
+  [/#if]
+  [#if state??]
+  "state" : "${state}"
+  [/#if]
+  [#if (output?? || jobs?? || totalNodesToExport?? || availableNodesToExport?? || previouslyExportedNodes?? || jobId?? || state??) && jobList??]
+  ,
+  [/#if]
+  [#if jobList??]
+  "jobList" : [
+    [#list jobList as job]
+    {
+      "jobId" : "${job.jobId?js_string}",
+      "state" : "${job.state}",
+      "phase" : "${job.phase}",
+      "total" : ${job.total?c},
+      "done" : ${job.done?c},
+      "remaining" : ${job.remaining?c},
+      "nodesPerSecond" : ${job.nodesPerSecond?c},
+      "bytes" : ${job.bytes?c},
+      "bytesPerSecond" : ${job.bytesPerSecond?c},
+      "eta" : ${job.eta?c},
+      "elapsed" : ${job.elapsed?c},
+      "contentBytes" : ${job.contentBytes?c},
+      "stages" : [@stageList job.stages /]
+    }[#if job_has_next],[/#if]
+    [/#list]
+  ]
+  [/#if]
+  [#if (output?? || jobs?? || totalNodesToExport?? || availableNodesToExport?? || previouslyExportedNodes?? || jobId?? || state?? || jobList??) && stages??]
+  ,
+  [/#if]
+  [#if stages??]
+  "contentBytes" : ${contentBytes?c},
+  "stages" : [@stageList stages /]
+  [/#if]
 }
\ No newline at end of file
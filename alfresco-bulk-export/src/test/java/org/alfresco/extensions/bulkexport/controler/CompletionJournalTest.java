@@ -0,0 +1,183 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+
+import org.alfresco.extensions.bulkexport.controler.CompletionJournal.Durability;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Replays journals torn by a crash and journals recorded against another node cache
+ */
+public class CompletionJournalTest
+{
+    private static final long SIZE = 100;
+    private static final long CHECKSUM = 0x1234ABCDL;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysRecordedPositions() throws IOException
+    {
+        File file = folder.newFile("export.complete");
+        record(file, 0, 5, 99);
+
+        assertEquals(positions(0, 5, 99), open(file, SIZE, CHECKSUM));
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndTruncated() throws IOException
+    {
+        File file = folder.newFile("export.complete");
+        record(file, 1, 2, 3);
+        long length = file.length();
+        truncate(file, length - 3);
+
+        assertEquals(positions(1, 2), open(file, SIZE, CHECKSUM));
+        assertEquals("journal truncated to its last valid record", length - CompletionJournal.RECORD_SIZE, file.length());
+
+        // records appended after the truncation are replayed with the earlier ones
+        record(file, 7);
+        assertEquals(positions(1, 2, 7), open(file, SIZE, CHECKSUM));
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void replayStopsAtDamagedRecord() throws IOException
+    {
+        File file = folder.newFile("export.complete");
+        record(file, 10, 11, 12);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            // complement of the second record no longer matches its position
+            raf.seek(CompletionJournal.HEADER_SIZE + CompletionJournal.RECORD_SIZE + 4);
+            raf.writeInt(0);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        assertEquals(positions(10), open(file, SIZE, CHECKSUM));
+        assertEquals(CompletionJournal.HEADER_SIZE + CompletionJournal.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void journalOfAnotherCacheIsDiscarded() throws IOException
+    {
+        File file = folder.newFile("export.complete");
+        record(file, 1, 2, 3);
+
+        assertTrue("other checksum", open(file, SIZE, CHECKSUM + 1).isEmpty());
+        assertEquals(CompletionJournal.HEADER_SIZE, file.length());
+
+        // the journal now belongs to the new cache
+        record(file, SIZE, CHECKSUM + 1, 4);
+        assertEquals(positions(4), open(file, SIZE, CHECKSUM + 1));
+
+        assertTrue("other size", open(file, SIZE + 1, CHECKSUM + 1).isEmpty());
+    }
+
+    @Test
+    public void positionsOutsideOfTheCacheAreIgnored() throws IOException
+    {
+        File file = folder.newFile("export.complete");
+        BitSet completed = positions(3, (int) SIZE, (int) SIZE + 10);
+        CompletionJournal.write(file, completed, SIZE, CHECKSUM);
+
+        assertEquals(positions(3), open(file, SIZE, CHECKSUM));
+    }
+
+    @Test
+    public void writeReplacesTheJournal() throws IOException
+    {
+        File file = folder.newFile("export.complete");
+        record(file, 1, 2, 3);
+        CompletionJournal.write(file, positions(8, 9), SIZE, CHECKSUM);
+
+        assertEquals(positions(8, 9), open(file, SIZE, CHECKSUM));
+        assertEquals(CompletionJournal.HEADER_SIZE + 2 * CompletionJournal.RECORD_SIZE, file.length());
+    }
+
+    private static void record(File file, int... positions) throws IOException
+    {
+        record(file, SIZE, CHECKSUM, positions);
+    }
+
+    private static void record(File file, long size, long checksum, int... positions) throws IOException
+    {
+        CompletionJournal journal = new CompletionJournal(file, size, checksum, Durability.FLUSH, 2, 0);
+        try
+        {
+            for (int position : positions)
+            {
+                journal.record(position);
+            }
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    private static BitSet open(File file, long size, long checksum) throws IOException
+    {
+        CompletionJournal journal = new CompletionJournal(file, size, checksum, Durability.NONE, 1, 0);
+        try
+        {
+            return journal.getCompleted();
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(length);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static BitSet positions(int... positions)
+    {
+        BitSet bits = new BitSet();
+        for (int position : positions)
+        {
+            bits.set(position);
+        }
+        return bits;
+    }
+}
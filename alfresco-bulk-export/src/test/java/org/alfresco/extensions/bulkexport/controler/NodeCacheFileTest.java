@@ -0,0 +1,267 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes node caches mixing stores and id forms, and reads them back through the reader and its cursor
+ */
+public class NodeCacheFileTest
+{
+    private static final StoreRef[] STORES = {
+        StoreRef.STORE_REF_WORKSPACE_SPACESSTORE,
+        new StoreRef("archive", "SpacesStore"),
+        new StoreRef("user", "alfrescoUserStore"),
+        new StoreRef("workspace", "version2Store")
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsStoresAndIds() throws IOException
+    {
+        List<NodeRef> nodes = new ArrayList<NodeRef>();
+        // more nodes than the cursor reads at once, so it crosses blocks
+        for (int i = 0; i < 10000; i++)
+        {
+            StoreRef store = STORES[i % STORES.length];
+            String id;
+            switch (i % 5)
+            {
+                case 0:
+                    id = "node-" + i;
+                    break;
+                case 1:
+                    // upper case UUIDs do not come back unchanged, they go to the id table
+                    id = UUID.randomUUID().toString().toUpperCase();
+                    break;
+                case 2:
+                    id = "caf\u00e9 \u4e2d\u6587 " + i;
+                    break;
+                default:
+                    id = UUID.randomUUID().toString();
+                    break;
+            }
+            nodes.add(new NodeRef(store, id));
+        }
+        File file = write(nodes);
+
+        assertTrue(NodeCacheFile.isNodeCacheFile(file));
+        NodeCacheFile.Reader reader = new NodeCacheFile.Reader(file);
+        NodeCacheFile.Reader.Cursor cursor = reader.iterator();
+        try
+        {
+            assertEquals(nodes.size(), reader.size());
+            reader.verify();
+
+            assertEquals(-1, cursor.position());
+            for (int i = 0; i < nodes.size(); i++)
+            {
+                assertTrue(cursor.hasNext());
+                assertEquals(nodes.get(i), cursor.next());
+                assertEquals(i, cursor.position());
+            }
+            assertFalse(cursor.hasNext());
+
+            for (int i : new int[] { 0, 1, 2, 4095, 4096, 9999 })
+            {
+                assertEquals(nodes.get(i), reader.get(i));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void emptyCache() throws IOException
+    {
+        File file = write(new ArrayList<NodeRef>());
+
+        NodeCacheFile.Reader reader = new NodeCacheFile.Reader(file);
+        try
+        {
+            assertEquals(0, reader.size());
+            reader.verify();
+            assertFalse(reader.iterator().hasNext());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void checksumIdentifiesTheRecords() throws IOException
+    {
+        List<NodeRef> nodes = new ArrayList<NodeRef>();
+        nodes.add(new NodeRef(STORES[0], UUID.randomUUID().toString()));
+        nodes.add(new NodeRef(STORES[1], "node-1"));
+        long checksum = checksum(write(nodes));
+
+        assertEquals("same nodes", checksum, checksum(write(nodes)));
+
+        nodes.add(new NodeRef(STORES[2], "node-2"));
+        assertFalse("other nodes", checksum == checksum(write(nodes)));
+    }
+
+    @Test
+    public void damagedRecordFailsVerification() throws IOException
+    {
+        List<NodeRef> nodes = new ArrayList<NodeRef>();
+        for (int i = 0; i < 10; i++)
+        {
+            nodes.add(new NodeRef(STORES[0], UUID.randomUUID().toString()));
+        }
+        File file = write(nodes);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            long offset = NodeCacheFile.HEADER_SIZE + 5 * NodeCacheFile.RECORD_SIZE + 4;
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0xFF);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        NodeCacheFile.Reader reader = new NodeCacheFile.Reader(file);
+        try
+        {
+            reader.verify();
+            fail("damaged record not detected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void truncatedCacheIsRejected() throws IOException
+    {
+        List<NodeRef> nodes = new ArrayList<NodeRef>();
+        for (int i = 0; i < 10; i++)
+        {
+            nodes.add(new NodeRef(STORES[1], "node-" + i));
+        }
+        File file = write(nodes);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(NodeCacheFile.HEADER_SIZE + 3 * NodeCacheFile.RECORD_SIZE);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        try
+        {
+            new NodeCacheFile.Reader(file).close();
+            fail("truncated cache opened");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void abortKeepsThePreviousCache() throws IOException
+    {
+        List<NodeRef> nodes = new ArrayList<NodeRef>();
+        nodes.add(new NodeRef(STORES[0], "kept"));
+        File file = write(nodes);
+
+        NodeCacheFile.Writer writer = new NodeCacheFile.Writer(file);
+        writer.write(new NodeRef(STORES[0], "discarded"));
+        writer.abort();
+
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        NodeCacheFile.Reader reader = new NodeCacheFile.Reader(file);
+        try
+        {
+            assertEquals(1, reader.size());
+            assertEquals(nodes.get(0), reader.get(0));
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private File write(List<NodeRef> nodes) throws IOException
+    {
+        File file = new File(folder.getRoot(), "export.cache");
+        NodeCacheFile.Writer writer = new NodeCacheFile.Writer(file);
+        try
+        {
+            for (NodeRef node : nodes)
+            {
+                writer.write(node);
+            }
+            assertEquals(nodes.size(), writer.getCount());
+        }
+        catch (IOException e)
+        {
+            writer.abort();
+            throw e;
+        }
+        writer.close();
+        return file;
+    }
+
+    private static long checksum(File file) throws IOException
+    {
+        NodeCacheFile.Reader reader = new NodeCacheFile.Reader(file);
+        try
+        {
+            return reader.getChecksum();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The properties file writer of <code>FileFolder.insertFileProperties</code> before 
+ * {@link MetadataXmlWriter}, kept to compare the output and the throughput of the new writer.
+ */
+public class LegacyMetadataXml
+{
+    // XML 1.0
+    // #x9 | #xA | #xD | [#x20-#xD7FF] | [#xE000-#xFFFD] | [#x10000-#x10FFFF]
+    public static String XML10PATTERN = "[^"
+            + "\u0009\r\n"
+            + "\u0020-\uD7FF"
+            + "\uE000-\uFFFD"
+            + "\ud800\udc00-\udbff\udfff"
+            + "]";
+
+    /**
+     * Write the properties file the way the old code did: the entries are concatenated, 
+     * the invalid characters stripped with a regex and the text written in one go
+     * 
+     * @return true if characters not allowed in XML 1.0 were stripped
+     */
+    public static boolean write(OutputStream stream, String type, List<String> aspects, Map<String, String> properties) throws IOException
+    {
+        String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n<properties>";
+        String footer = "\n</properties>";
+        
+        String tType = "<entry key=\"type\">" + type + "</entry>";
+        String tAspect = "<entry key=\"aspects\">" + formatAspects(aspects) + "</entry>";
+        
+        String text = "\n\t" + tType + "\n\t" + tAspect;
+        
+        Set<String> set = properties.keySet();
+        
+        for (String string : set) 
+        {
+            String key = string;
+            String value = properties.get(key);
+            
+            if(value == null || value.length() == 0) {
+                continue;
+            }
+            
+            value = formatProperty(value);
+            
+            text += "\n\t<entry key=\"" + key +"\">" + value + "</entry>";
+        }
+        
+        String validXMLText = stripInvalid(text);
+        boolean stripped = !text.equals(validXMLText);
+        text = validXMLText;
+        
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(stream, "UTF8"));
+        
+        StringBuilder builder = new StringBuilder();
+        builder.append(header);
+        builder.append(text);
+        builder.append(footer);
+        
+        bw.write(builder.toString());
+        bw.close();
+        
+        return stripped;
+    }
+
+    /**
+     * Replace the special characters of a value, as the old <code>FileFolder.formatProperty</code>
+     */
+    public static String formatProperty(String value)
+    {
+        //format &
+        value = value.replaceAll("&", "&amp;");
+        //format < and >
+        value = value.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
+        
+        return value;
+    }
+
+    /**
+     * Strip the characters not allowed in XML 1.0, as the old <code>FileFolder.insertFileProperties</code>
+     */
+    public static String stripInvalid(String text)
+    {
+        return text.replaceAll(XML10PATTERN, "");
+    }
+
+    private static String formatAspects(List<String> aspects)
+    {
+        String dado = "";
+        
+        boolean flag = false;
+        for (String string : aspects) 
+        {
+            if(flag)
+            {
+                dado += ",";
+            }
+            
+            dado += string;
+            flag = true;
+        }
+        
+        return dado;
+    }
+}
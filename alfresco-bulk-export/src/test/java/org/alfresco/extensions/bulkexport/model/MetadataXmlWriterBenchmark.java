@@ -0,0 +1,185 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of the properties file of one node, written by {@link MetadataXmlWriter} and by the 
+ * concatenating writer it replaced. The files are written to a stream that discards them, so only 
+ * the building, escaping and encoding are measured.
+ * 
+ * Run with <code>mvn test-compile</code> then 
+ * <code>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main MetadataXmlWriterBenchmark</code>, 
+ * or from the IDE through {@link #main(String[])}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataXmlWriterBenchmark
+{
+    /** number of properties of the node */
+    @Param({"30", "100", "400"})
+    public int propertyCount;
+
+    /** length of every property value */
+    @Param({"40", "400"})
+    public int valueLength;
+
+    private String type;
+    private List<String> aspects;
+    private Map<String, String> properties;
+
+    @Setup
+    public void setUp()
+    {
+        Random random = new Random(42);
+        type = "cm:content";
+        aspects = Arrays.asList("cm:auditable", "sys:referenceable", "cm:titled", "cm:author", "sys:localized");
+        properties = new LinkedHashMap<String, String>();
+        for (int i = 0; i < propertyCount; i++)
+        {
+            properties.put("cm:property" + i, value(random, i));
+        }
+    }
+
+    @Benchmark
+    public boolean concatenatingWriter() throws IOException
+    {
+        return LegacyMetadataXml.write(new DiscardOutputStream(), type, aspects, properties);
+    }
+
+    @Benchmark
+    public boolean streamingWriter() throws IOException
+    {
+        MetadataXmlWriter xml = new MetadataXmlWriter(new DiscardOutputStream());
+        try
+        {
+            xml.writeEntry("type", type);
+            xml.writeEntry("aspects", aspects);
+            for (Entry<String, String> property : properties.entrySet())
+            {
+                String value = property.getValue();
+                if (value == null || value.length() == 0)
+                {
+                    continue;
+                }
+                xml.writeEntry(property.getKey(), value);
+            }
+        }
+        finally
+        {
+            xml.close();
+        }
+        return xml.hasStrippedInvalidCharacters();
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(MetadataXmlWriterBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * Plain text, text with markup, a JSON encoded multivalue list, and now and then a control character
+     */
+    private String value(Random random, int index)
+    {
+        StringBuilder value = new StringBuilder(valueLength);
+        if (index % 4 == 3)
+        {
+            List<String> items = new ArrayList<String>();
+            while (value.length() < valueLength)
+            {
+                String item = word(random, 8);
+                items.add(item);
+                value.append(item).append("\",\"");
+            }
+            value.setLength(0);
+            value.append('[');
+            for (int i = 0; i < items.size(); i++)
+            {
+                value.append(i > 0 ? ",\"" : "\"").append(items.get(i)).append('"');
+            }
+            value.append(']');
+            return value.toString();
+        }
+        while (value.length() < valueLength)
+        {
+            value.append(word(random, 10)).append(' ');
+            if (index % 4 == 1 && random.nextInt(4) == 0)
+            {
+                value.append("R&D <b>").append(word(random, 5)).append("</b> ");
+            }
+        }
+        if (index % 50 == 7)
+        {
+            value.setCharAt(valueLength / 2, '\u0001');
+        }
+        value.setLength(valueLength);
+        return value.toString();
+    }
+
+    private static String word(Random random, int maxLength)
+    {
+        char[] word = new char[1 + random.nextInt(maxLength)];
+        for (int i = 0; i < word.length; i++)
+        {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(word);
+    }
+
+    private static class DiscardOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *  This file is part of Alfresco Bulk Export Tool.
+ * 
+ *  Alfresco Bulk Export Tool is free software: you can redistribute it 
+ *  and/or modify it under the terms of the GNU General Public License as
+ *  published by the Free Software Foundation, either version 3 of the 
+ *  License, or (at your option) any later version.
+ *
+ *  Alfresco Bulk Export Tool  is distributed in the hope that it will be 
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along 
+ *  with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.alfresco.extensions.bulkexport.model.LegacyMetadataXml;
+import org.junit.Test;
+
+/**
+ * Escapes the characters that matter to XML 1.0, and compares the element content with what the 
+ * properties file writer produced before the escaper
+ */
+public class XmlEscaperTest {
+
+    private static final String[] SAMPLES = {
+        "",
+        "plain value",
+        "a & b < c > d \"quoted\" 'single'",
+        "&amp; already escaped &lt;",
+        "tab\there\r\nnew line",
+        "bell\u0007 null\u0000 escape\u001b unit separator\u001f",
+        "\u0001\u0002\u0003",
+        "caf\u00e9 \u4e2d\u6587 \u00a0 \u007f \ud7ff \ue000 \ufffd",
+        "clef \ud834\udd1e emoji \ud83d\ude00",
+        "lone high \ud834 end",
+        "lone low \udd1e end",
+        "reversed \udd1e\ud834 pair",
+        "trailing high \ud834",
+        "\udd1eleading low",
+        "not characters \ufffe and \uffff",
+        "mixed <\u0000&\ud834\udd1e\ufffe>\t\""
+    };
+
+    @Test
+    public void escapesMarkupInText() throws IOException {
+        assertText("a &amp; b &lt; c &gt; d \"quoted\" 'single'", "a & b < c > d \"quoted\" 'single'", false);
+        assertText("&amp;amp;", "&amp;", false);
+    }
+
+    @Test
+    public void escapesMarkupInAttribute() throws IOException {
+        assertAttribute("a &amp; b &lt; c &gt; d &quot;quoted&quot; 'single'", "a & b < c > d \"quoted\" 'single'", false);
+    }
+
+    @Test
+    public void keepsWhiteSpaceInText() throws IOException {
+        assertText("tab\there\r\nnew line", "tab\there\r\nnew line", false);
+    }
+
+    @Test
+    public void escapesWhiteSpaceInAttribute() throws IOException {
+        assertAttribute("tab&#9;here&#13;&#10;new line", "tab\there\r\nnew line", false);
+    }
+
+    @Test
+    public void stripsControlCharacters() throws IOException {
+        assertText("bell null escape", "bell\u0007 null\u0000 escape\u001b", true);
+        assertAttribute("ab", "a\u0001\u001fb", true);
+        // DEL and the C1 controls are allowed in XML 1.0
+        assertText("\u007f\u0085\u009f", "\u007f\u0085\u009f", false);
+    }
+
+    @Test
+    public void keepsPairedSurrogates() throws IOException {
+        assertText("clef \ud834\udd1e", "clef \ud834\udd1e", false);
+        assertAttribute("\ud83d\ude00\ud83d\ude00", "\ud83d\ude00\ud83d\ude00", false);
+    }
+
+    @Test
+    public void stripsLoneSurrogates() throws IOException {
+        assertText("high  end", "high \ud834 end", true);
+        assertText("low  end", "low \udd1e end", true);
+        assertText("reversed  pair", "reversed \udd1e\ud834 pair", true);
+        assertAttribute("trailing ", "trailing \ud834", true);
+        assertAttribute("leading", "\udd1eleading", true);
+        // the second high surrogate pairs with the low one
+        assertText("\ud834\udd1e", "\ud834\ud834\udd1e", true);
+    }
+
+    @Test
+    public void stripsNonCharacters() throws IOException {
+        assertText("a b", "a\ufffe \uffffb", true);
+        assertText("\ufffd", "\ufffd", false);
+    }
+
+    @Test
+    public void textMatchesLegacyOutput() throws IOException {
+        for (String sample : SAMPLES) {
+            String legacy = LegacyMetadataXml.stripInvalid(LegacyMetadataXml.formatProperty(sample));
+            StringWriter out = new StringWriter();
+            boolean stripped = XmlEscaper.writeText(out, sample);
+
+            assertEquals(escape(sample), legacy, out.toString());
+            // the legacy stripped flag also compares the escaped text, which only loses invalid characters
+            assertEquals(escape(sample), !LegacyMetadataXml.formatProperty(sample).equals(legacy), stripped);
+        }
+    }
+
+    @Test
+    public void attributeMatchesLegacyOutputOutsideOfQuotesAndWhiteSpace() throws IOException {
+        for (String sample : SAMPLES) {
+            String legacy = LegacyMetadataXml.stripInvalid(LegacyMetadataXml.formatProperty(sample))
+                    .replace("\"", "&quot;").replace("\t", "&#9;").replace("\n", "&#10;").replace("\r", "&#13;");
+            StringWriter out = new StringWriter();
+            XmlEscaper.writeAttribute(out, sample);
+
+            assertEquals(escape(sample), legacy, out.toString());
+        }
+    }
+
+    private static void assertText(String expected, String value, boolean stripped) throws IOException {
+        StringWriter out = new StringWriter();
+        assertEquals(escape(value), stripped, XmlEscaper.writeText(out, value));
+        assertEquals(escape(value), expected, out.toString());
+    }
+
+    private static void assertAttribute(String expected, String value, boolean stripped) throws IOException {
+        StringWriter out = new StringWriter();
+        assertEquals(escape(value), stripped, XmlEscaper.writeAttribute(out, value));
+        assertEquals(escape(value), expected, out.toString());
+    }
+
+    /**
+     * @return the value with the characters outside of printable ASCII as \\u escapes, for the failure messages
+     */
+    private static String escape(String value) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x7f) {
+                builder.append(c);
+            } else {
+                builder.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return builder.toString();
+    }
+}